@@ -1,14 +1,6 @@
 package nblc;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.URL;
-import java.net.URLDecoder;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.Properties;
 
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.webapp.WebAppContext;
@@ -72,6 +64,8 @@ public class App
 
 		ServletHolder serHol = ctx.addServlet(ServletContainer.class, "/*");
 		serHol.setInitOrder(1);
+		// postReservation suspends its request with AsyncResponse
+		serHol.setAsyncSupported(true);
 		serHol.setInitParameter("jersey.config.server.provider.packages",
 			"nblc.rest");
 		serHol.setInitParameter("javax.ws.rs.Application",
@@ -134,67 +128,40 @@ public class App
 				}
 				logger.warn("Server stopped.");
 
-				if(UPLOADDB.equals("0")) {
+				BookingJournal journal = BookingJournal.getInstance();
+				if(journal!=null) journal.close();
+
+				// With uploads off nothing is queued for Drive, and without
+				// credentials a flush would only sit out the retries.
+				if(!"1".equals(UPLOADDB)) {
 					logger.warn("Database upload is OFF!");
 					return;
 				}
 
-				logger.info("The start dir is "+System.getProperty("user.dir"));
-
-				String dbPath = null;
-				Properties prop=new Properties();
-				String dbLoc = null;
-				String gDriveFolder = null;
-
-				try {
-					FileInputStream ip= new FileInputStream(
-							System.getProperty("user.dir")+"/tea.properties");
-					try {
-						prop.load(ip);
-					} catch (IOException e) {
-						throw new RuntimeException(e);
-					}
-					dbLoc = prop.getProperty("dbLoc");
-					gDriveFolder = prop.getProperty("gDriveFolder");
-					logger.info("User has requested the database to be stored at: "+
-							dbLoc);
-					logger.info("User has database to be persisted at: "+
-							gDriveFolder);
-				}
-				catch (FileNotFoundException fnfe) {
-					logger.info("No tea.properties file found.");
-				}
-				if (dbLoc != null) dbPath = dbLoc;
-				else {
-					dbPath = App.class.getClassLoader().getResource("./derby").
-							getPath();
-					try {
-						dbPath = URLDecoder.decode(dbPath, "UTF-8");
-					} catch (UnsupportedEncodingException e) {
-						throw new RuntimeException(e);
-					}
-					dbPath+="/attendees";
-				}
-
-				try {
-					Files.walkFileTree(Paths.get(dbPath),
-							new MyFileVisitor(dbPath, dbPath+".tar.gz"));
-					logger.info("The tarball database backup file is: "+
-							dbPath+".tar.gz");
-					String fileId = DriveQuickstart.Upload(
-							dbPath+".tar.gz",prop.getProperty("gDriveFolder"));
-					if(fileId!=null) logger.info("The archive file id is "+
-							fileId);
-				}
-				catch (Exception ex) {
-					logger.error(ex.getMessage());
-					for (StackTraceElement e : ex.getStackTrace())
-						logger.error(e);
-				}
-
+				// Only a database that finished starting is backed up; one
+				// still being restored must not overwrite the copy on Drive.
+				DerbyBackup backup = DerbyBackup.getInstance();
+				if(backup!=null) backup.stop();
+				if(backup!=null && Readiness.getInstance().isReady())
+					backup.backup();
+				else logger.warn("Data layer not ready; skipping the database backup");
+				flushDriveUploads();
 			}
 		};
 		Runtime.getRuntime().addShutdownHook(shutdownListener);
 	}
 
+	// Whatever does not reach Drive before exit stays spooled and is sent
+	// on the next start.
+	private static void flushDriveUploads() {
+		DriveUploadQueue queue = DriveUploadQueue.getInstance();
+		try {
+			if(!queue.flush(60000))
+				logger.warn("Drive uploads still pending at exit: "+
+						queue.getStats().get("pending"));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
 }
@@ -0,0 +1,67 @@
+package nblc;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression applied to database tarballs.
+ * <p>
+ * {@code .tar.gz} is block-parallel gzip, using
+ * {@code db.backup.compress.threads} threads (all cores by default) and
+ * {@code db.backup.compress.block.kb} blocks (1024 by default).  Every
+ * tarball goes to Google Drive, so gzip is the only codec in use;
+ * ArchiveCodecBenchmark compares it with framed LZ4.
+ */
+public enum ArchiveCodec {
+
+    GZIP(".tar.gz") {
+        @Override
+        public OutputStream compress(OutputStream out) {
+            return new ParallelGzipOutputStream(out, THREADS, BLOCK_SIZE);
+        }
+
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new GzipCompressorInputStream(in, true);
+        }
+    };
+
+    private static final int THREADS;
+    private static final int BLOCK_SIZE;
+
+    static {
+        EnvironmentProperties env = new DefaultEnvironmentProperties();
+        THREADS = envInt(env, "db.backup.compress.threads",
+                Runtime.getRuntime().availableProcessors());
+        BLOCK_SIZE = envInt(env, "db.backup.compress.block.kb", 1024)*1024;
+    }
+
+    private final String extension;
+
+    ArchiveCodec(String extension) {
+        this.extension = extension;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public abstract OutputStream compress(OutputStream out) throws IOException;
+
+    public abstract InputStream decompress(InputStream in) throws IOException;
+
+    private static int envInt(EnvironmentProperties env, String key, int defaultValue) {
+        String value = env.getEnvironmentProperties(key);
+        if(value==null || value.trim().isEmpty()) return defaultValue;
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            return parsed>0 ? parsed : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+}
@@ -0,0 +1,534 @@
+package nblc;
+
+import com.google.gson.Gson;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.javatuples.Pair;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of every reservation created or deleted, kept in
+ * numbered segment files next to the database.
+ * <p>
+ * Callers block in {@link #append} until their record is on disk.  One
+ * writer thread takes everything queued since its last write, writes it in
+ * one go and forces it with a single fsync, so concurrent bookings share a
+ * flush instead of paying for one each.  A segment is sealed once it
+ * reaches {@code journal.segment.bytes}; when {@code journal.compact.segments}
+ * sealed segments have built up they are folded into one that holds only
+ * the latest record per reservation.
+ * <p>
+ * Segments are copied to Google Drive through the upload queue: sealed
+ * ones when they are sealed, the active one every {@code journal.ship.ms}
+ * while it changes.  Each record is framed with its length and CRC, so a
+ * segment cut short by a crash or a copy taken mid-write reads back up to
+ * its last whole record.
+ */
+public class BookingJournal {
+
+    private static Logger logger = LogManager.getLogger(App.class);
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final Pattern SEGMENT_NAME =
+            Pattern.compile("^journal-[0-9]{20}\\.log$");
+    private static final int MAX_RECORD = 16*1024*1024;
+    private static final Gson gson = new Gson();
+
+    private static BookingJournal single_instance = null;
+
+    public static class Record {
+        public static final String CREATE = "create";
+        public static final String SEAT = "seat";
+        public static final String DELETE = "delete";
+        // Starts a compacted segment: everything read before it is replaced.
+        static final String SNAPSHOT = "snapshot";
+
+        public String op;
+        public long reservationId;
+        public Reservation reservation;
+        public List<Pair<Integer,ReservedSeat>> seats;
+
+        Record(String op, long reservationId, Reservation reservation,
+               List<Pair<Integer,ReservedSeat>> seats) {
+            this.op = op;
+            this.reservationId = reservationId;
+            this.reservation = reservation;
+            this.seats = seats;
+        }
+
+        public static Record create(long resId, Reservation r,
+                                    List<Pair<Integer,ReservedSeat>> seats) {
+            return new Record(CREATE, resId, r, new ArrayList<Pair<Integer,ReservedSeat>>(seats));
+        }
+
+        public static Record seat(long resId, int tableNo, ReservedSeat rs) {
+            return new Record(SEAT, resId, null,
+                    new ArrayList<Pair<Integer,ReservedSeat>>(
+                            Collections.singletonList(Pair.with(tableNo, rs))));
+        }
+
+        public static Record delete(long resId) {
+            return new Record(DELETE, resId, null, null);
+        }
+    }
+
+    private static class Pending {
+        final byte[] frame;
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+        Pending(byte[] frame) {
+            this.frame = frame;
+        }
+    }
+
+    private final Path dir;
+    private final String folder;
+    private final long segmentBytes;
+    private final int compactSegments;
+    private final List<Path> sealed = new ArrayList<Path>();
+    private final List<Pending> queue = new ArrayList<Pending>();
+    private final Thread writer;
+    private final ExecutorService compactor;
+    private final ScheduledExecutorService shipper;
+
+    private FileChannel channel;
+    private Path active;
+    private long activeSeq;
+    private long activeBytes;
+    private long shippedBytes = -1;
+    private boolean closed = false;
+
+    private long appends = 0;
+    private long syncs = 0;
+    private long largestGroup = 0;
+    private long rollovers = 0;
+    private long compactions = 0;
+
+    /**
+     * Opens the journal in {@code dir}, starting a new segment after any
+     * that are already there.  A null {@code folder} keeps it local.
+     */
+    public BookingJournal(Path dir, String folder, long segmentBytes,
+                          int compactSegments, long shipMs) throws IOException {
+        this.dir = dir;
+        this.folder = folder;
+        this.segmentBytes = segmentBytes;
+        this.compactSegments = Math.max(2, compactSegments);
+        Files.createDirectories(dir);
+        sealed.addAll(segments(dir));
+        activeSeq = sealed.isEmpty() ? 1 : seqOf(sealed.get(sealed.size()-1))+1;
+        openSegment();
+        // The segment active before a restart may not have been shipped.
+        if(!sealed.isEmpty()) ship(sealed.get(sealed.size()-1));
+
+        writer = new Thread(this::runWriter, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        compactor = Executors.newSingleThreadExecutor(r -> daemon(r, "journal-compact"));
+        shipper = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "journal-ship"));
+        if(folder!=null && shipMs>0)
+            shipper.scheduleWithFixedDelay(this::shipActive, shipMs, shipMs, TimeUnit.MILLISECONDS);
+        if(sealed.size()>=this.compactSegments) compactor.submit(this::compact);
+        logger.info("Booking journal at "+dir+" ("+sealed.size()+" sealed segment(s))");
+    }
+
+    /**
+     * Installs the journal the shutdown hook closes.
+     */
+    public static synchronized void install(BookingJournal journal) {
+        single_instance = journal;
+    }
+
+    /**
+     * The installed journal, or null if the database was never opened.
+     */
+    public static synchronized BookingJournal getInstance() {
+        return single_instance;
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    public static boolean isSegmentName(String name) {
+        return SEGMENT_NAME.matcher(name).matches();
+    }
+
+    private static long seqOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                name.length()-SEGMENT_SUFFIX.length()));
+    }
+
+    private Path segmentPath(long seq) {
+        return dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * The segment files in {@code dir}, oldest first.
+     */
+    public static List<Path> segments(Path dir) throws IOException {
+        List<Path> found = new ArrayList<Path>();
+        if(!Files.isDirectory(dir)) return found;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for(Path f : files) {
+                if(isSegmentName(f.getFileName().toString())) found.add(f);
+            }
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    private void openSegment() throws IOException {
+        active = segmentPath(activeSeq);
+        channel = FileChannel.open(active, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        activeBytes = 0;
+    }
+
+    /**
+     * Writes {@code record} and returns once it has been forced to disk.
+     */
+    public void append(Record record) throws IOException {
+        append(Collections.singletonList(record));
+    }
+
+    /**
+     * Writes {@code records} in order and returns once all of them have
+     * been forced to disk, normally with one fsync.
+     */
+    public void append(List<Record> records) throws IOException {
+        List<Pending> pending = new ArrayList<Pending>(records.size());
+        for(Record r : records) pending.add(new Pending(frame(r)));
+        synchronized (this) {
+            if(closed) throw new IOException("Booking journal is closed");
+            queue.addAll(pending);
+            notifyAll();
+        }
+        try {
+            for(Pending p : pending) p.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the journal");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ?
+                    (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private static byte[] frame(Record record) {
+        byte[] payload = gson.toJson(record).getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer frame = ByteBuffer.allocate(8+payload.length);
+        frame.putInt(payload.length);
+        frame.putInt((int) crc.getValue());
+        frame.put(payload);
+        return frame.array();
+    }
+
+    private void runWriter() {
+        while(true) {
+            List<Pending> group;
+            synchronized (this) {
+                while(queue.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if(queue.isEmpty()) return;
+                // Whatever queued up during the previous fsync goes out now.
+                group = new ArrayList<Pending>(queue);
+                queue.clear();
+            }
+            boolean written = false;
+            try {
+                // A failed rollover leaves no segment open; try again.
+                if(!channel.isOpen()) {
+                    synchronized (this) {
+                        openSegment();
+                    }
+                }
+                int size = 0;
+                for(Pending p : group) size += p.frame.length;
+                ByteBuffer buf = ByteBuffer.allocate(size);
+                for(Pending p : group) buf.put(p.frame);
+                buf.flip();
+                while(buf.hasRemaining()) channel.write(buf);
+                channel.force(false);
+                synchronized (this) {
+                    activeBytes += size;
+                    appends += group.size();
+                    syncs++;
+                    largestGroup = Math.max(largestGroup, group.size());
+                }
+                written = true;
+            } catch (IOException e) {
+                logger.error("Booking journal write failed: "+e.getMessage());
+                for(Pending p : group) p.done.completeExceptionally(e);
+                discardTornWrite();
+            }
+            if(!written) continue;
+            for(Pending p : group) p.done.complete(null);
+            if(activeBytes>=segmentBytes) {
+                try {
+                    rollover();
+                } catch (IOException e) {
+                    logger.error("Booking journal rollover failed: "+e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Replay stops at the first damaged record of a segment, so bytes of a
+     * failed write must not stay in front of later, acknowledged ones:
+     * cut them off, or if that fails too, seal the segment and carry on
+     * in a new one.
+     */
+    private void discardTornWrite() {
+        try {
+            if(channel.isOpen()) {
+                channel.truncate(activeBytes);
+                channel.position(activeBytes);
+                return;
+            }
+        } catch (IOException e) {
+            logger.error("Unable to truncate journal segment "+active.getFileName()+": "+e.getMessage());
+        }
+        try {
+            rollover();
+        } catch (IOException e) {
+            logger.error("Booking journal rollover failed: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Seals the active segment and opens the next one.  If opening fails,
+     * the writer opens it before the next group instead.
+     */
+    private void rollover() throws IOException {
+        Path done = active;
+        int sealedCount;
+        synchronized (this) {
+            // Already sealed by an earlier rollover that could not open
+            // the next segment.
+            if(!channel.isOpen() && sealed.contains(done)) {
+                openSegment();
+                return;
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Unable to close journal segment "+done.getFileName()+": "+e.getMessage());
+        }
+        synchronized (this) {
+            sealed.add(done);
+            sealedCount = sealed.size();
+            activeSeq++;
+            shippedBytes = -1;
+            rollovers++;
+        }
+        ship(done);
+        if(sealedCount>=compactSegments) compactor.submit(this::compact);
+        synchronized (this) {
+            openSegment();
+        }
+    }
+
+    private void ship(Path segment) {
+        if(folder==null) return;
+        try {
+            DriveUploadQueue.getInstance().upload(
+                    segment.getFileName().toString(), folder, segment.toFile());
+        } catch (IOException e) {
+            logger.warn("Unable to queue "+segment.getFileName()+" for Drive: "+e.getMessage());
+        }
+    }
+
+    private void shipActive() {
+        Path segment;
+        synchronized (this) {
+            if(closed || activeBytes==shippedBytes) return;
+            segment = active;
+            shippedBytes = activeBytes;
+        }
+        ship(segment);
+    }
+
+    /**
+     * Folds the sealed segments into the newest of them, keeping only the
+     * latest state of each reservation (deletes stay as tombstones so a
+     * restore from an older database backup still drops them).
+     */
+    private void compact() {
+        List<Path> inputs;
+        synchronized (this) {
+            inputs = new ArrayList<Path>(sealed);
+        }
+        if(inputs.size()<2) return;
+        try {
+            Map<Long,Record> state = new LinkedHashMap<Long,Record>();
+            for(Path segment : inputs) read(segment, state);
+
+            Path target = inputs.get(inputs.size()-1);
+            Path tmp = target.resolveSibling(target.getFileName()+".compact");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                write(out, frame(new Record(Record.SNAPSHOT, 0, null, null)));
+                for(Record r : state.values()) write(out, frame(r));
+                out.force(false);
+            }
+            // The snapshot record makes the result correct on its own, so a
+            // crash before the older segments are gone does no harm.
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            ship(target);
+            for(Path old : inputs.subList(0, inputs.size()-1)) {
+                Files.deleteIfExists(old);
+                if(folder!=null) DriveUploadQueue.getInstance().delete(old.getFileName().toString());
+            }
+            synchronized (this) {
+                sealed.removeAll(inputs.subList(0, inputs.size()-1));
+                compactions++;
+            }
+            logger.info("Compacted "+inputs.size()+" journal segment(s) into "+
+                    target.getFileName()+" ("+state.size()+" reservation(s))");
+        } catch (IOException e) {
+            logger.error("Journal compaction failed: "+e.getMessage());
+        }
+    }
+
+    private static void write(FileChannel out, byte[] frame) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(frame);
+        while(buf.hasRemaining()) out.write(buf);
+    }
+
+    /**
+     * Reads every segment in {@code dir} and returns the latest record per
+     * reservation, oldest first: a create (with any seats added afterwards)
+     * or a delete.
+     */
+    public static Map<Long,Record> replay(Path dir) throws IOException {
+        Map<Long,Record> state = new LinkedHashMap<Long,Record>();
+        for(Path segment : segments(dir)) read(segment, state);
+        return state;
+    }
+
+    private static void read(Path segment, Map<Long,Record> state) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(segment)))) {
+            while(true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                int crc;
+                byte[] payload;
+                try {
+                    crc = in.readInt();
+                    if(length<0 || length>MAX_RECORD) throw new EOFException();
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    logger.warn("Journal segment "+segment.getFileName()+" ends in a partial record");
+                    return;
+                }
+                CRC32 check = new CRC32();
+                check.update(payload, 0, payload.length);
+                if((int) check.getValue()!=crc) {
+                    logger.warn("Journal segment "+segment.getFileName()+" has a damaged record; ignoring the rest");
+                    return;
+                }
+                apply(gson.fromJson(new String(payload, StandardCharsets.UTF_8), Record.class), state);
+            }
+        }
+    }
+
+    private static void apply(Record r, Map<Long,Record> state) {
+        if(Record.SNAPSHOT.equals(r.op)) {
+            state.clear();
+        } else if(Record.SEAT.equals(r.op)) {
+            Record created = state.get(r.reservationId);
+            if(created!=null && Record.CREATE.equals(created.op)) created.seats.addAll(r.seats);
+        } else {
+            if(r.seats==null) r.seats = new ArrayList<Pair<Integer,ReservedSeat>>();
+            state.remove(r.reservationId);
+            state.put(r.reservationId, r);
+        }
+    }
+
+    public synchronized Map<String,Long> getStats() {
+        Map<String,Long> stats = new LinkedHashMap<String,Long>();
+        stats.put("appends", appends);
+        stats.put("syncs", syncs);
+        stats.put("largestGroup", largestGroup);
+        stats.put("segments", (long) sealed.size()+1);
+        stats.put("activeBytes", activeBytes);
+        stats.put("rollovers", rollovers);
+        stats.put("compactions", compactions);
+        return stats;
+    }
+
+    /**
+     * Writes out whatever is queued, closes the active segment and queues
+     * it for Drive one last time.
+     */
+    public void close() {
+        synchronized (this) {
+            if(closed) return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        shipper.shutdownNow();
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(10, TimeUnit.SECONDS);
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.warn("Unable to close journal segment: "+e.getMessage());
+        }
+        ship(active);
+    }
+
+}
@@ -0,0 +1,50 @@
+package nblc;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of {@link DataAccess#createReservationTrans}.  A booking either
+ * commits, loses one or more seats to another party, or fails outright.
+ */
+public class BookingResult {
+
+    public enum Status { BOOKED, CONFLICT, FAILED }
+
+    public final Status status;
+    public final long reservationId;
+    public final List<String> takenSeats;
+
+    private BookingResult(Status status, long reservationId, List<String> takenSeats) {
+        this.status = status;
+        this.reservationId = reservationId;
+        this.takenSeats = takenSeats;
+    }
+
+    public static BookingResult booked(long reservationId) {
+        return new BookingResult(Status.BOOKED, reservationId,
+                Collections.<String>emptyList());
+    }
+
+    public static BookingResult conflict(List<String> takenSeats) {
+        return new BookingResult(Status.CONFLICT, -1,
+                Collections.unmodifiableList(takenSeats));
+    }
+
+    public static BookingResult failed() {
+        return new BookingResult(Status.FAILED, -1,
+                Collections.<String>emptyList());
+    }
+
+    public boolean isBooked() { return status==Status.BOOKED; }
+
+    public boolean isConflict() { return status==Status.CONFLICT; }
+
+    @Override
+    public String toString() {
+        if(isBooked()) return "booked " + reservationId;
+        if(isConflict()) return "seats already taken " + takenSeats;
+        return "failed";
+    }
+
+}
@@ -18,8 +18,8 @@ public class ChristmasTea {
 		return seats;
 	}
 
-	public static int seatsLeft(List<Table> tables, List<ReservedSeat> taken) {
-		return seatsTotal(tables)-taken.size();
+	public static int seatsLeft(SeatOccupancy occupancy) {
+		return occupancy.seatsLeft();
 	}
 
 	public static void ListAttendees(List<Table> tables,List<ReservedSeat> seats) {
@@ -0,0 +1,147 @@
+package nblc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small bounded pool of JDBC connections to the embedded Derby database.
+ * At most {@code maxSize} connections are handed out at once; callers that
+ * arrive while the pool is exhausted wait up to {@code timeoutMs} and the
+ * time they spent waiting is recorded in the pool's statistics.
+ */
+public class ConnectionPool {
+
+    private static Logger logger = LogManager.getLogger(App.class);
+
+    private final String name;
+    private final String dbUrl;
+    private final boolean readOnly;
+    private final int maxSize;
+    private final long timeoutMs;
+
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<PooledConnection> idle =
+            new ConcurrentLinkedDeque<PooledConnection>();
+    private volatile boolean closed = false;
+
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong waitNanosTotal = new AtomicLong();
+    private final AtomicLong waitNanosMax = new AtomicLong();
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+
+    public ConnectionPool(String name, String dbUrl, boolean readOnly,
+                          int maxSize, long timeoutMs) {
+        this.name = name;
+        this.dbUrl = dbUrl;
+        this.readOnly = readOnly;
+        this.maxSize = maxSize;
+        this.timeoutMs = timeoutMs;
+        this.permits = new Semaphore(maxSize, true);
+        logger.info("Connection pool '"+name+"' allows "+maxSize+
+                " connection(s)"+(readOnly ? " (read-only)" : ""));
+    }
+
+    public PooledConnection acquire() throws SQLException {
+        if(closed) throw new SQLException("Connection pool '"+name+"' is closed");
+        long start = System.nanoTime();
+        boolean gotPermit;
+        try {
+            gotPermit = permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a connection", e);
+        }
+        long waited = System.nanoTime() - start;
+        waitNanosTotal.addAndGet(waited);
+        waitNanosMax.accumulateAndGet(waited, Math::max);
+        if(!gotPermit) {
+            timeouts.incrementAndGet();
+            throw new SQLException("Timed out after "+timeoutMs+
+                    " ms waiting for a '"+name+"' connection");
+        }
+        try {
+            PooledConnection pc = idle.pollFirst();
+            while(pc!=null && !pc.isUsable()) {
+                pc.closeQuietly();
+                pc = idle.pollFirst();
+            }
+            if(pc==null) pc = new PooledConnection(this, openConnection());
+            acquired.incrementAndGet();
+            inUse.incrementAndGet();
+            return pc;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private Connection openConnection() throws SQLException {
+        Connection conn = DriverManager.getConnection(dbUrl);
+        if(readOnly) {
+            conn.setAutoCommit(true);
+            conn.setReadOnly(true);
+        }
+        else conn.setAutoCommit(false);
+        conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        created.incrementAndGet();
+        logger.debug("Opened connection #"+created.get()+" for pool '"+name+"'");
+        return conn;
+    }
+
+    void release(PooledConnection pc) {
+        inUse.decrementAndGet();
+        if(closed || !pc.isUsable()) pc.closeQuietly();
+        else idle.offerFirst(pc);
+        permits.release();
+    }
+
+    public boolean isReadOnly() { return readOnly; }
+
+    void statementCacheHit() { statementHits.incrementAndGet(); }
+
+    void statementCacheMiss() { statementMisses.incrementAndGet(); }
+
+    public Map<String,Long> getStats() {
+        Map<String,Long> stats = new LinkedHashMap<String,Long>();
+        long count = acquired.get();
+        stats.put("maxSize", (long) maxSize);
+        stats.put("created", (long) created.get());
+        stats.put("inUse", (long) inUse.get());
+        stats.put("idle", (long) idle.size());
+        stats.put("waiting", (long) permits.getQueueLength());
+        stats.put("acquired", count);
+        stats.put("timeouts", timeouts.get());
+        stats.put("waitMicrosAvg", count==0 ? 0 :
+                TimeUnit.NANOSECONDS.toMicros(waitNanosTotal.get()/count));
+        stats.put("waitMicrosMax",
+                TimeUnit.NANOSECONDS.toMicros(waitNanosMax.get()));
+        stats.put("statementCacheHits", statementHits.get());
+        stats.put("statementCacheMisses", statementMisses.get());
+        return stats;
+    }
+
+    public void close() {
+        closed = true;
+        PooledConnection pc = idle.pollFirst();
+        while(pc!=null) {
+            pc.closeQuietly();
+            pc = idle.pollFirst();
+        }
+    }
+
+}
@@ -2,22 +2,53 @@ package nblc;
 
 import org.javatuples.Pair;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 public interface DataAccess {
 
+    public interface AttendeeHandler {
+        void attendee(String partyName, String seatId, String person) throws IOException;
+    }
+
     public List<Reservation> getReservations();
 
     public long createReservation(Reservation r);
 
     public void createReservedSeat(long resId, int tableNo, ReservedSeat rs);
 
-    public long createReservationTrans(Reservation r, List<Pair<Integer,ReservedSeat>> tableSeatPairs);
+    public BookingResult createReservationTrans(Reservation r, List<Pair<Integer,ReservedSeat>> tableSeatPairs);
 
     public List<ReservedSeat> getReservedSeats(Reservation r);
 
     public List<String> getReservedSeatIds(Reservation r);
 
+    public List<Reservation> getReservationsWithSeatIds();
+
+    /**
+     * Up to {@code limit} reservations with ids above {@code afterId}, in id
+     * order and with their seat ids.  A non-null {@code namePrefix} keeps
+     * only parties whose name starts with it, ignoring case.
+     */
+    public List<Reservation> getReservationsPage(long afterId, int limit, String namePrefix);
+
+    /**
+     * Streams every reserved seat, grouped by reservation, to the handler
+     * while the rows are read.
+     */
+    public void forEachAttendee(AttendeeHandler handler) throws IOException;
+
     public void deleteReservation(long resId);
 
+    public SeatOccupancy getSeatOccupancy();
+
+    /**
+     * Increases whenever a reservation or seat is added or removed, so an
+     * unchanged value means the listings have not changed either.
+     */
+    public long getVersion();
+
+    public Map<String,Map<String,Long>> getStats();
+
 }
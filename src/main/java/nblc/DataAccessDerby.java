@@ -9,45 +9,79 @@ import nblc.tables.DatabaseTable;
 import nblc.tables.Reservations;
 import nblc.tables.ReservedSeats;
 import nblc.tables.Users;
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
-import org.apache.commons.compress.utils.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.javatuples.Pair;
 
 import java.io.*;
 import java.lang.reflect.Type;
-import java.math.BigInteger;
 import java.net.URLDecoder;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.GeneralSecurityException;
 import java.sql.*;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Singleton
 public class DataAccessDerby implements DataAccess {
 
+    private static final String SELECT_RESERVATIONS =
+            "SELECT id, name, seatQty FROM reservations";
+    private static final String INSERT_RESERVATION =
+            "insert into reservations (id, name, seatQty) values (?,?,?)";
+    private static final String INSERT_RESERVED_SEAT =
+            "insert into reserved_seats " +
+            "(reservationId, seatId, name, mealEnum) values (?,?,?,?)";
+    private static final String SELECT_SEATS_FOR_RESERVATION =
+            "SELECT seatId, name, mealEnum FROM reserved_seats " +
+            "WHERE reservationId=?";
+    private static final String SELECT_RESERVATIONS_WITH_SEATS =
+            "SELECT r.id, r.name, r.seatQty, s.seatId " +
+            "FROM reservations r " +
+            "LEFT OUTER JOIN reserved_seats s ON s.reservationId = r.id " +
+            "ORDER BY r.id, s.seatId";
+    private static final String SELECT_RESERVATION_PAGE =
+            "SELECT id, name, seatQty FROM reservations WHERE id > ? " +
+            "ORDER BY id FETCH FIRST ? ROWS ONLY";
+    private static final String SELECT_RESERVATION_PAGE_BY_NAME =
+            "SELECT id, name, seatQty FROM reservations WHERE id > ? " +
+            "AND UPPER(name) LIKE ? ESCAPE '\\' " +
+            "ORDER BY id FETCH FIRST ? ROWS ONLY";
+    private static final String SELECT_SEATS_FOR_RESERVATION_RANGE =
+            "SELECT reservationId, seatId FROM reserved_seats " +
+            "WHERE reservationId >= ? AND reservationId <= ? " +
+            "ORDER BY reservationId, seatId";
+    private static final String SELECT_ATTENDEES =
+            "SELECT r.name, s.seatId, s.name " +
+            "FROM reservations r " +
+            "JOIN reserved_seats s ON s.reservationId = r.id " +
+            "ORDER BY r.id, s.seatId";
+    private static final String SELECT_SEAT =
+            "SELECT seatId FROM reserved_seats WHERE seatId=?";
+    private static final String SELECT_ALL_SEAT_IDS =
+            "SELECT seatId FROM reserved_seats";
+    private static final String DELETE_RESERVED_SEATS =
+            "DELETE FROM reserved_seats WHERE reservationId=?";
+    private static final String DELETE_RESERVATION =
+            "DELETE FROM reservations WHERE id=?";
+    private static final String SELECT_RESERVATION_IDS =
+            "SELECT id FROM reservations";
+
     @Override
     public List<Reservation> getReservations() {
         List<Reservation> myList = new ArrayList<Reservation>();
-        try {
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT id, name, seatQty FROM reservations");
+        try (PooledConnection pc = readPool.acquire();
+             ResultSet rs = pc.prepare(SELECT_RESERVATIONS).executeQuery()) {
             while (rs.next()) {
                 myList.add(new Reservation(
                         rs.getLong("id"),
                         rs.getString("name"),
                         rs.getInt("seatQty")
                 ));
-                String logstr = String.format("%s\t%d\t%d",
-                        rs.getString("name"),
-                        rs.getInt("seatQty"),
-                        rs.getLong("id"));
             }
         } catch (SQLException se) {
             logger.error(se.getMessage());
@@ -60,13 +94,16 @@ public class DataAccessDerby implements DataAccess {
     @Override
     public long createReservation(Reservation r) {
         long myId = TSID.fast().toLong();
-        try {
-            Statement stmt = conn.createStatement();
-            String sql="insert into reservations " +
-                    "(id, name, seatQty) values (" + myId +
-                    ",'" + r.name + "'," + r.seatQty + ")";
-            stmt.executeUpdate(sql);
-            conn.commit();
+        try (PooledConnection pc = writePool.acquire()) {
+            PreparedStatement stmt = pc.prepare(INSERT_RESERVATION);
+            stmt.setLong(1,myId);
+            stmt.setString(2,r.name);
+            stmt.setInt(3,r.seatQty);
+            stmt.executeUpdate();
+            pc.commit();
+            version.incrementAndGet();
+            journal(BookingJournal.Record.create(myId, r,
+                    Collections.<Pair<Integer,ReservedSeat>>emptyList()));
         } catch (SQLException se) {
             logger.error(se.getMessage());
         }
@@ -75,17 +112,19 @@ public class DataAccessDerby implements DataAccess {
 
     @Override
     public void createReservedSeat(long resId, int tableNo, ReservedSeat rs) {
-        try {
-            PreparedStatement stmt = conn.prepareStatement(
-                    "insert into reserved_seats " +
-                            "(reservationId, seatId, name, mealEnum) " +
-                            "values (?,?,?,?)");
+        String seatId = SeatOccupancy.seatId(tableNo,rs.seat.number);
+        try (PooledConnection pc = writePool.acquire()) {
+            PreparedStatement stmt = pc.prepare(INSERT_RESERVED_SEAT);
             stmt.setLong(1,resId);
-            stmt.setString(2,"S" + tableNo + "-" + rs.seat.number);
+            stmt.setString(2,seatId);
             stmt.setString(3,rs.person);
             stmt.setString(4,rs.meal.toString());
             stmt.executeUpdate();
-            conn.commit();
+            pc.commit();
+            occupancy.reserve(Collections.singletonList(seatId));
+            version.incrementAndGet();
+            journal(BookingJournal.Record.seat(resId, tableNo, rs));
+            publishSeats(Collections.singletonList(seatId), "reserved");
         } catch (SQLException se) {
             logger.error(se.getMessage());
         }
@@ -93,80 +132,133 @@ public class DataAccessDerby implements DataAccess {
     }
 
     @Override
-    public long createReservationTrans(Reservation r, List<Pair<Integer,ReservedSeat>> tableSeatPairs) {
+    public BookingResult createReservationTrans(Reservation r, List<Pair<Integer,ReservedSeat>> tableSeatPairs) {
         long resId = TSID.fast().toLong();
-        boolean gotError=false;
         if(r.reservationId>0) resId = r.reservationId;
-        try {
-            PreparedStatement insert = conn.prepareStatement(
-                    "insert into reservations (id, name, seatQty) values (?,?,?)"
-            );
+        List<String> seatIds = new ArrayList<String>();
+        for(Pair<Integer,ReservedSeat> tsp : tableSeatPairs)
+            seatIds.add(SeatOccupancy.seatId(tsp.getValue0(),tsp.getValue1().seat.number));
+
+        // Claim the seats in memory first; the index is the authority on
+        // availability and is released again if the insert does not commit.
+        List<String> taken = occupancy.tryReserve(seatIds);
+        if(!taken.isEmpty()) {
+            logger.warn("Seats already taken: "+taken);
+            return BookingResult.conflict(taken);
+        }
+        boolean committed = false;
+        try (PooledConnection pc = writePool.acquire()) {
+            PreparedStatement insert = pc.prepare(INSERT_RESERVATION);
             insert.setLong(1,resId);
             insert.setString(2,r.name);
             insert.setInt(3,r.seatQty);
             insert.executeUpdate();
-        } catch (SQLException se) {
-            logger.error("INSERT Reservations ERROR: "+se.getMessage());
-            gotError=true;
-            resId=-1;
-        }
-        for(Pair<Integer,ReservedSeat> tsp : tableSeatPairs) {
-            Integer tableNo = tsp.getValue0();
-            ReservedSeat rs = tsp.getValue1();
-            try {
-                PreparedStatement check = conn.prepareStatement(
-                    "select count (*) as seatCount from reserved_seats where seatId=?"
-                );
-                check.setString(1,"S" + tableNo + "-" + rs.seat.number);
-                ResultSet checkResult = check.executeQuery();
-                while (checkResult.next()) {
-                    if(checkResult.getInt(1)>0) {
-                        conn.rollback();
-                        return -1;
-                    }
-                }
-                PreparedStatement stmt = conn.prepareStatement(
-                        "insert into reserved_seats " +
-                                "(reservationId, seatId, name, mealEnum) " +
-                                "values (?,?,?,?)");
+
+            // All seats go in as one batch; the unique constraint on seatId
+            // is what finally rules out a double booking.
+            PreparedStatement stmt = pc.prepare(INSERT_RESERVED_SEAT);
+            for(int i=0; i<tableSeatPairs.size(); i++) {
+                ReservedSeat rs = tableSeatPairs.get(i).getValue1();
                 stmt.setLong(1,resId);
-                stmt.setString(2,"S" + tableNo + "-" + rs.seat.number);
+                stmt.setString(2,seatIds.get(i));
                 stmt.setString(3,rs.person);
                 stmt.setString(4,rs.meal.toString());
-                stmt.executeUpdate();
+                stmt.addBatch();
+            }
+            try {
+                stmt.executeBatch();
             } catch (SQLException se) {
-                logger.error("INSERT Reserved_Seats ERROR: "+se.getMessage());
-                logger.error(se.getMessage());
-                gotError=true;
-                resId=-1;
+                stmt.clearBatch();
+                if(!isDuplicateKey(se)) throw se;
+                pc.rollback();
+                taken = findTakenSeats(pc, seatIds);
+                logger.warn("Seats already taken in database: "+taken);
+                occupancy.reserve(taken);
+                return BookingResult.conflict(taken);
+            }
+            pc.commit();
+            committed = true;
+            occupancy.commit(seatIds);
+            version.incrementAndGet();
+        } catch (SQLException se) {
+            if(isDuplicateKey(se))
+                logger.error("Reservation "+resId+" already exists");
+            else logger.error("INSERT Reservation ERROR: "+se.getMessage());
+            return BookingResult.failed();
+        } finally {
+            if(!committed) {
+                List<String> release = new ArrayList<String>(seatIds);
+                release.removeAll(taken);
+                occupancy.release(release);
+                // The claim may have been seen by a reader in the meantime.
+                version.incrementAndGet();
             }
         }
-        try { if(!gotError) conn.commit(); }
-        catch (SQLException e) { logger.error(e.getMessage()); }
-        return resId;
+        journal(BookingJournal.Record.create(resId, r, tableSeatPairs));
+        publishSeats(seatIds, "reserved");
+        return BookingResult.booked(resId);
+    }
+
+    /**
+     * Tells every open seat picker about seats a committed change has
+     * taken or freed.
+     */
+    private static void publishSeats(List<String> seatIds, String state) {
+        SeatBroadcaster broadcaster = SeatBroadcaster.getInstance();
+        for(String seatId : seatIds) broadcaster.publish(seatId, state, null);
+    }
+
+    /**
+     * Records a committed change in the booking journal.  The change is
+     * already in Derby, so a failed write is logged rather than undone.
+     */
+    private void journal(BookingJournal.Record record) {
+        if(journal==null) return;
+        try {
+            journal.append(record);
+        } catch (IOException e) {
+            logger.error("Booking journal write failed: "+e.getMessage());
+        }
+    }
+
+    private static boolean isDuplicateKey(SQLException se) {
+        for(SQLException e=se; e!=null; e=e.getNextException()) {
+            if("23505".equals(e.getSQLState())) return true;
+        }
+        return false;
+    }
+
+    private List<String> findTakenSeats(PooledConnection pc, List<String> seatIds)
+            throws SQLException {
+        List<String> taken = new ArrayList<String>();
+        PreparedStatement check = pc.prepare(SELECT_SEAT);
+        for(String seatId : seatIds) {
+            check.setString(1,seatId);
+            try (ResultSet rs = check.executeQuery()) {
+                if(rs.next()) taken.add(seatId);
+            }
+        }
+        return taken;
     }
 
     @Override
     public List<ReservedSeat> getReservedSeats(Reservation r) {
         List<ReservedSeat> myList = new ArrayList<ReservedSeat>();
-        try {
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT * FROM reserved_seats " +
-                    "WHERE reservationId="+r.reservationId+"");
-            while (rs.next()) {
-                Pattern pattern = Pattern.
-                        compile("^S(?<table>[0-9]+)-(?<seat>[0-9]+)$");
-                Matcher matcher = pattern.matcher(rs.getString("seatId"));
-                if(matcher.find()) {
-                    int table = Integer.parseInt(matcher.group("table"));
-                    int seat = Integer.parseInt(matcher.group("seat"));
-                    Seat mySeat = MyMessage.tables.get(table-1).seats[seat-1];
-                    myList.add(new ReservedSeat(
-                            r,
-                            mySeat,
-                            rs.getString("name"),
-                            MealType.valueOf(rs.getString("mealEnum"))
-                    ));
+        try (PooledConnection pc = readPool.acquire()) {
+            PreparedStatement stmt = pc.prepare(SELECT_SEATS_FOR_RESERVATION);
+            stmt.setLong(1,r.reservationId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    int[] ts = SeatOccupancy.parseSeatId(rs.getString("seatId"));
+                    if(ts!=null && ts[0]<=MyMessage.tables.size()) {
+                        Seat mySeat = MyMessage.tables.get(ts[0]-1).seats[ts[1]-1];
+                        myList.add(new ReservedSeat(
+                                r,
+                                mySeat,
+                                rs.getString("name"),
+                                MealType.valueOf(rs.getString("mealEnum"))
+                        ));
+                    }
                 }
             }
         } catch (SQLException se) {
@@ -178,39 +270,200 @@ public class DataAccessDerby implements DataAccess {
     @Override
     public List<String> getReservedSeatIds(Reservation r) {
         List<String> myList = new ArrayList<String>();
-        try {
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT seatId FROM reserved_seats " +
-                    "WHERE reservationId="+r.reservationId+"");
-            while (rs.next()) myList.add(rs.getString("seatId"));
+        try (PooledConnection pc = readPool.acquire()) {
+            PreparedStatement stmt = pc.prepare(SELECT_SEATS_FOR_RESERVATION);
+            stmt.setLong(1,r.reservationId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) myList.add(rs.getString("seatId"));
+            }
         } catch (SQLException se) {
             logger.error(se.getMessage());
         }
         return myList;
     }
 
+    @Override
+    public List<Reservation> getReservationsWithSeatIds() {
+        List<Reservation> myList = new ArrayList<Reservation>();
+        try (PooledConnection pc = readPool.acquire()) {
+            PreparedStatement stmt = pc.prepare(SELECT_RESERVATIONS_WITH_SEATS);
+            stmt.setFetchSize(500);
+            // One pass over the join, ordered so that every reservation's
+            // seats arrive together and can be folded in as the rows stream.
+            try (ResultSet rs = stmt.executeQuery()) {
+                long currentId = 0;
+                String currentName = null;
+                int currentQty = 0;
+                List<String> currentSeats = null;
+                while (rs.next()) {
+                    long id = rs.getLong(1);
+                    if(currentSeats==null || id!=currentId) {
+                        if(currentSeats!=null) myList.add(new Reservation(
+                                currentId,currentName,currentQty,currentSeats));
+                        currentId = id;
+                        currentName = rs.getString(2);
+                        currentQty = rs.getInt(3);
+                        currentSeats = new ArrayList<String>();
+                    }
+                    String seatId = rs.getString(4);
+                    if(seatId!=null) currentSeats.add(seatId);
+                }
+                if(currentSeats!=null) myList.add(new Reservation(
+                        currentId,currentName,currentQty,currentSeats));
+            }
+        } catch (SQLException se) {
+            logger.error(se.getMessage());
+        }
+        return myList;
+    }
+
+    @Override
+    public List<Reservation> getReservationsPage(long afterId, int limit, String namePrefix) {
+        List<Reservation> myList = new ArrayList<Reservation>();
+        try (PooledConnection pc = readPool.acquire()) {
+            // Keyset page on the primary key: the index seek starts right
+            // after the cursor, however deep into the table it is.
+            PreparedStatement stmt;
+            if(namePrefix==null) {
+                stmt = pc.prepare(SELECT_RESERVATION_PAGE);
+                stmt.setLong(1,afterId);
+                stmt.setInt(2,limit);
+            } else {
+                stmt = pc.prepare(SELECT_RESERVATION_PAGE_BY_NAME);
+                stmt.setLong(1,afterId);
+                stmt.setString(2,likePrefix(namePrefix.toUpperCase()));
+                stmt.setInt(3,limit);
+            }
+            List<Long> ids = new ArrayList<Long>();
+            List<String> names = new ArrayList<String>();
+            List<Integer> qtys = new ArrayList<Integer>();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getLong(1));
+                    names.add(rs.getString(2));
+                    qtys.add(rs.getInt(3));
+                }
+            }
+            if(ids.isEmpty()) return myList;
+
+            // The page's seats in one range scan of the (reservationId, seatId) key.
+            Map<Long,List<String>> seats = new HashMap<Long,List<String>>();
+            for(Long id : ids) seats.put(id, new ArrayList<String>());
+            PreparedStatement seatStmt = pc.prepare(SELECT_SEATS_FOR_RESERVATION_RANGE);
+            seatStmt.setLong(1,ids.get(0));
+            seatStmt.setLong(2,ids.get(ids.size()-1));
+            try (ResultSet rs = seatStmt.executeQuery()) {
+                while (rs.next()) {
+                    List<String> seatList = seats.get(rs.getLong(1));
+                    if(seatList!=null) seatList.add(rs.getString(2));
+                }
+            }
+            for(int i=0; i<ids.size(); i++) {
+                myList.add(new Reservation(ids.get(i),names.get(i),qtys.get(i),
+                        seats.get(ids.get(i))));
+            }
+        } catch (SQLException se) {
+            logger.error(se.getMessage());
+        }
+        return myList;
+    }
+
+    private static String likePrefix(String prefix) {
+        StringBuilder sb = new StringBuilder();
+        for(char c : prefix.toCharArray()) {
+            if(c=='%' || c=='_' || c=='\\') sb.append('\\');
+            sb.append(c);
+        }
+        return sb.append('%').toString();
+    }
+
+    @Override
+    public void forEachAttendee(AttendeeHandler handler) throws IOException {
+        try (PooledConnection pc = readPool.acquire()) {
+            PreparedStatement stmt = pc.prepare(SELECT_ATTENDEES);
+            stmt.setFetchSize(500);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    handler.attendee(rs.getString(1), rs.getString(2), rs.getString(3));
+                }
+            }
+        } catch (SQLException se) {
+            logger.error(se.getMessage());
+            // Part of the export may already be on the wire; fail it rather
+            // than let a truncated file look complete.
+            throw new IOException(se);
+        }
+    }
+
     @Override
     public void deleteReservation(long resId) {
-        try {
-            Statement stmt = conn.createStatement();
-            int num=stmt.executeUpdate("DELETE FROM reserved_seats " +
-                    "WHERE reservationId="+ BigInteger.valueOf(resId));
-            num=stmt.executeUpdate("DELETE FROM reservations " +
-                    "WHERE id="+BigInteger.valueOf(resId));
-            conn.commit();
+        List<String> seatIds = new ArrayList<String>();
+        try (PooledConnection pc = writePool.acquire()) {
+            PreparedStatement select = pc.prepare(SELECT_SEATS_FOR_RESERVATION);
+            select.setLong(1,resId);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) seatIds.add(rs.getString("seatId"));
+            }
+            PreparedStatement deleteSeats = pc.prepare(DELETE_RESERVED_SEATS);
+            deleteSeats.setLong(1,resId);
+            deleteSeats.executeUpdate();
+            PreparedStatement deleteReservation = pc.prepare(DELETE_RESERVATION);
+            deleteReservation.setLong(1,resId);
+            deleteReservation.executeUpdate();
+            pc.commit();
+            occupancy.release(seatIds);
+            version.incrementAndGet();
+            journal(BookingJournal.Record.delete(resId));
+            publishSeats(seatIds, "nonpending");
         } catch (SQLException se) {
             logger.error(se.getMessage());
         }
     }
 
+    @Override
+    public SeatOccupancy getSeatOccupancy() { return occupancy; }
+
+    @Override
+    public long getVersion() { return version.get(); }
+
+    void loadOccupancy() throws SQLException {
+        List<String> seatIds = new ArrayList<String>();
+        try (PooledConnection pc = readPool.acquire();
+             ResultSet rs = pc.prepare(SELECT_ALL_SEAT_IDS).executeQuery()) {
+            while (rs.next()) seatIds.add(rs.getString(1));
+        }
+        occupancy.clear();
+        occupancy.reserve(seatIds);
+        logger.info("Seat occupancy loaded: "+occupancy.seatsTaken()+
+                " taken, "+occupancy.seatsLeft()+" left");
+    }
+
+    @Override
+    public Map<String,Map<String,Long>> getStats() {
+        Map<String,Map<String,Long>> stats =
+                new LinkedHashMap<String,Map<String,Long>>();
+        if(readPool!=null) stats.put("readPool", readPool.getStats());
+        if(writePool!=null) stats.put("writePool", writePool.getStats());
+        stats.put("occupancy", occupancy.getStats());
+        if(journal!=null) stats.put("journal", journal.getStats());
+        return stats;
+    }
+
     private static Logger logger = LogManager.getLogger(App.class);
     private Properties prop=new Properties();
     private String dbLoc = null;
     private String gDriveFolder = null;
     private String dbPath = null;
-    Connection conn;
-
-    public DataAccessDerby() throws IOException, SQLException {
+    private String rollForwardFrom = null;
+    private ConnectionPool readPool = null;
+    private ConnectionPool writePool = null;
+    private BookingJournal journal = null;
+    private final SeatOccupancy occupancy = new SeatOccupancy(MyMessage.tables);
+    // Seeded from the clock so versions handed out before a restart are
+    // never reused afterwards.
+    private final AtomicLong version = new AtomicLong(System.currentTimeMillis());
+
+    public DataAccessDerby() throws IOException {
         logger.info("The start dir is "+System.getProperty("user.dir"));
         try {
             FileInputStream ip= new FileInputStream(
@@ -234,23 +487,43 @@ public class DataAccessDerby implements DataAccess {
             dbPath = URLDecoder.decode(dbPath, "UTF-8");
             dbPath+="/attendees";
         }
+        // Restoring from Drive can take a while; Jetty serves the static
+        // pages meanwhile and REST calls wait for Readiness.
+        Thread init = new Thread(this::initialize, "db-init");
+        init.setDaemon(true);
+        init.start();
+    }
+
+    /**
+     * A database at {@code dbPath} that the caller opens step by step,
+     * without Google Drive; used by tests.
+     */
+    DataAccessDerby(String dbPath) {
+        this.dbPath = dbPath;
+    }
+
+    private void initialize() {
+        Readiness readiness = Readiness.getInstance();
         try {
+            readiness.stage("restoring database from Google Drive");
             downloadDb(true);
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException(e);
-        }
 
-        //DriveQuickstart.DeleteDb();
-        connectionToDerby();
-        normalDbUsage();
+            //DriveQuickstart.DeleteDb();
+            readiness.stage("opening database");
+            connectionToDerby();
+            normalDbUsage();
+            loadOccupancy();
+            readiness.stage("replaying booking journal");
+            openJournal();
 
-        try {
+            readiness.stage("replaying reservation files from Google Drive");
             downloadDb(false);
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException(e);
+            readiness.ready();
+            if("1".equals(UPLOADDB))
+                DerbyBackup.getInstance().start(envLong("db.backup.ship.ms", 60000));
+        } catch (Exception e) {
+            readiness.failed(e);
         }
-
-
     }
 
     public void connectionToDerby()
@@ -263,12 +536,15 @@ public class DataAccessDerby implements DataAccess {
         String dbUrl = "jdbc:derby:"+dbPath+";create=true";
 
         logger.info("Derby's URL is: "+dbUrl);
+        // After a download of a base backup, the first boot restores it and
+        // replays the shipped logs on top.
+        String bootUrl = rollForwardFrom==null ? dbUrl :
+                "jdbc:derby:"+dbPath+";rollForwardRecoveryFrom="+rollForwardFrom;
         boolean databaseConnected=false;
         while(!databaseConnected) {
             logger.info("Attempting database connection...");
             try {
-                conn = DriverManager.getConnection(dbUrl);
-                conn.setAutoCommit(false);
+                DriverManager.getConnection(bootUrl).close();
                 databaseConnected=true;
             } catch (Exception ex) {
                 if(ex.getMessage().contains("Failed to start database")) {
@@ -281,9 +557,54 @@ public class DataAccessDerby implements DataAccess {
                 else throw ex;
             }
         }
+
+        // The database is booted; every unit of work now borrows its own
+        // connection.  Reads never hold locks across requests, so that pool
+        // can be as wide as the machine, while writers are kept fewer to
+        // limit lock contention on the seat rows.
+        long timeoutMs = envLong("db.pool.timeout.ms", 5000);
+        readPool = new ConnectionPool("read", dbUrl, true,
+                (int) envLong("db.pool.read",
+                        Math.max(2, Runtime.getRuntime().availableProcessors())),
+                timeoutMs);
+        writePool = new ConnectionPool("write", dbUrl, false,
+                (int) envLong("db.pool.write", 4), timeoutMs);
+        if(rollForwardFrom!=null) {
+            try {
+                DerbyBackup.deleteTree(Paths.get(dbPath+".restore"));
+            } catch (IOException e) {
+                logger.warn("Unable to remove restore files: "+e.getMessage());
+            }
+            rollForwardFrom = null;
+        }
+
+        String mode = env.getEnvironmentProperties("db.backup.mode");
+        DerbyBackup.install(new DerbyBackup(dbPath, prop.getProperty("gDriveFolder"),
+                writePool, !"full".equalsIgnoreCase(mode),
+                envLong("db.backup.rebase.bytes", 64L*1024*1024)));
+    }
+
+    private static long envLong(String key, long defaultValue) {
+        String value = env.getEnvironmentProperties(key);
+        if(value==null || value.trim().isEmpty()) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring non-numeric value for "+key+": "+value);
+            return defaultValue;
+        }
     }
 
     public void normalDbUsage() throws SQLException
+    {
+        boolean needsUploading;
+        try (PooledConnection pc = writePool.acquire()) {
+            needsUploading = createMissingTables(pc.getConnection());
+        }
+        if(needsUploading) uploadDb();
+    }
+
+    private boolean createMissingTables(Connection conn) throws SQLException
     {
 	    boolean needsUploading = false;
 
@@ -309,7 +630,7 @@ public class DataAccessDerby implements DataAccess {
                 logger.trace(line);
         }
 
-        DatabaseTable reservedSeats = new ReservedSeats(conn);
+        ReservedSeats reservedSeats = new ReservedSeats(conn);
         if(!reservedSeats.isExistingTable()) {
             needsUploading=true;
             logger.info("Database table 'RESERVED_SEATS' must be created ...");
@@ -320,9 +641,15 @@ public class DataAccessDerby implements DataAccess {
         else {
             for(String line : reservedSeats.outputTable())
                 logger.trace(line);
+            // Seats already booked twice stop the start here, and the
+            // data layer answers 503 until they are fixed.
+            if(reservedSeats.addSeatConstraint()) {
+                needsUploading=true;
+                conn.commit();
+            }
         }
 
-        if(needsUploading) uploadDb();
+        return needsUploading;
     }
 
     private static final EnvironmentProperties env =
@@ -331,126 +658,256 @@ public class DataAccessDerby implements DataAccess {
             env.getEnvironmentProperties("uploaddb");
 
     public void uploadDb() {
-        if(UPLOADDB.equals("0")) {
+        if(!"1".equals(UPLOADDB)) {
             logger.warn("Database upload is OFF!");
             return;
         }
-        try {
-            //String tarFileName = source.getFileName().toString() + ".tar.gz";
-            Files.walkFileTree(Paths.get(dbPath),
-                    new MyFileVisitor(dbPath, dbPath+".tar.gz"));
-            logger.info("The tarball database backup file is: "+
-                    dbPath+".tar.gz");
-            String fileId = DriveQuickstart.Upload(dbPath+".tar.gz",prop.getProperty("gDriveFolder"));
-            if(fileId!=null) logger.info("The archive file id is "+fileId);
-        }
-        catch (Exception ex) {
-            logger.error(ex.getMessage());
-            for (StackTraceElement e : ex.getStackTrace())
-                logger.error(e);
+        DerbyBackup.getInstance().backup();
+    }
+
+    // Gson is thread safe; the download threads share one instance.
+    private static final Gson JOURNAL_GSON = new Gson();
+    private static final Type JOURNAL_SEATS =
+            new TypeToken<ArrayList<Pair<Integer,ReservedSeat>>>(){}.getType();
+
+    private static class JournalFile {
+        final String name;
+        final Reservation reservation;
+        final List<Pair<Integer,ReservedSeat>> seats;
+        JournalFile(String name, Reservation reservation, List<Pair<Integer,ReservedSeat>> seats) {
+            this.name = name;
+            this.reservation = reservation;
+            this.seats = seats;
         }
     }
 
     public void downloadDb(boolean isDownloadDb) throws GeneralSecurityException, IOException {
-        HashMap<String,ByteArrayOutputStream> fileMap = DriveQuickstart.Download(isDownloadDb);
-        if(fileMap!=null) {
-            boolean foundTgz=false;
-            for(Map.Entry<String,ByteArrayOutputStream> fileEntry : fileMap.entrySet()) {
-                if(fileEntry.getKey().equals("attendees.tar.gz") && isDownloadDb) {
-                    if(UPLOADDB.equals("0")) {
-                        logger.warn("Database upload is OFF!");
-                    }
-                    foundTgz=true;
-                    logger.info("Successfully downloaded attendees.tar.gz!");
-                    logger.info("Writing downloaded database to "+dbPath+".tar.gz");
-                    OutputStream os = new FileOutputStream(dbPath+".tar.gz");
-                    fileEntry.getValue().writeTo(os);
-                    fileEntry.getValue().close();
-                    os.close();
-                    TarArchiveInputStream tarIn = new TarArchiveInputStream(
-                            new GzipCompressorInputStream(
-                                    new BufferedInputStream(
-                                            new FileInputStream(dbPath+".tar.gz"))));
-                    TarArchiveEntry tarEntry = tarIn.getNextTarEntry();
-                    while(tarEntry!=null) {
-                        File file = new File(dbLoc+
-                                System.getProperty("file.separator")+tarEntry.getName());
-                        logger.trace("Working: " + file);
-                        String dir = file.toPath().toString().substring(0,
-                                file.toPath().toString().lastIndexOf(
-                                        System.getProperty("file.separator")));
-                        Files.createDirectories(new File(dir).toPath());
-                        IOUtils.copy(tarIn,new FileOutputStream(file));
-                        tarEntry = tarIn.getNextTarEntry();
-                    }
-                    tarIn.close();
-                } else if (!isDownloadDb && fileEntry.getKey().toLowerCase().contains("json")) {
-                    logger.info("Successfully downloaded "+fileEntry.getKey()+"!");
-                    logger.info("Writing downloaded JSON file to /tmp/"+fileEntry.getKey());
-                    OutputStream os = new FileOutputStream("/tmp/"+fileEntry.getKey());
-                    fileEntry.getValue().writeTo(os);
-                    fileEntry.getValue().close();
-                    os.close();
-
-                    InputStreamReader reader = new InputStreamReader(
-                            new FileInputStream("/tmp/"+fileEntry.getKey()),"UTF-8");
-                    BufferedReader bufRead = new BufferedReader(reader);
-                    Gson gson = new Gson();
-                    String myLine = bufRead.readLine();
-                    Reservation r = gson.fromJson(myLine,Reservation.class);
-                    //Type pairType = new TypeToken<Pair<Integer,ReservedSeat>>(){}.getType();
-
-                    Type listType = new TypeToken<ArrayList<Pair<Integer,ReservedSeat>>>(){}.getType();
-                    List<Pair<Integer,ReservedSeat>> resList = gson.fromJson(bufRead.readLine(),listType);
-
-                    if(!checkReservation(r.reservationId)) {
-                        long returnCode = this.createReservationTrans(r,resList);
-                        if(returnCode==-1) {
-                            logger.error("The Reservation could not be created from "+
-                                    fileEntry.getKey()+"; consider removing file from Google Drive");
-                            //DriveQuickstart.DeleteDb(fileEntry.getKey());
-                        }
-                    } else if (UPLOADDB.equals("1")) {
-                        DriveQuickstart.DeleteDb(fileEntry.getKey());
-                    }
-                    bufRead.close();
-                    reader.close();
-                    File jsonFile = new File("/tmp/"+fileEntry.getKey());
-                    jsonFile.delete();
+        if(isDownloadDb) {
+            Path restoreDir = Paths.get(dbPath+".restore");
+            DerbyBackup.deleteTree(restoreDir);
+            Files.createDirectories(restoreDir);
+            int found = DriveQuickstart.Download(DerbyBackup::isBackupFile, (name, in) -> {
+                Files.copy(in, restoreDir.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+                logger.info("Successfully downloaded "+name+"!");
+            });
+            if(found==0) logger.error("No database backup exists on Google Drive!");
+            else rollForwardFrom = DerbyBackup.prepareRestore(restoreDir, dbPath);
+            return;
+        }
+        // The JSON files are parsed as they stream in, several at a time;
+        // only the replay into Derby below is sequential.
+        Queue<JournalFile> files = new ConcurrentLinkedQueue<JournalFile>();
+        DriveQuickstart.Download(name -> name.toLowerCase().contains("json"), (name, in) -> {
+            logger.trace("Downloaded "+name);
+            BufferedReader bufRead = new BufferedReader(new InputStreamReader(in,"UTF-8"));
+            Reservation r = JOURNAL_GSON.fromJson(bufRead.readLine(),Reservation.class);
+            List<Pair<Integer,ReservedSeat>> resList =
+                    JOURNAL_GSON.fromJson(bufRead.readLine(),JOURNAL_SEATS);
+            files.add(new JournalFile(name, r, resList));
+        });
+        replayJournal(files, true);
+    }
+
+    /**
+     * Brings Derby up to date with the booking journal (fetching it from
+     * Google Drive when there is no local copy, as after a restore) and
+     * then opens it for new records.
+     */
+    void openJournal() throws IOException {
+        String dir = env.getEnvironmentProperties("journal.dir");
+        Path journalDir = Paths.get(dir==null || dir.trim().isEmpty() ?
+                dbPath+".journal" : dir.trim());
+        if(BookingJournal.segments(journalDir).isEmpty()) {
+            Files.createDirectories(journalDir);
+            try {
+                int found = DriveQuickstart.Download(BookingJournal::isSegmentName, (name, in) ->
+                        Files.copy(in, journalDir.resolve(name), StandardCopyOption.REPLACE_EXISTING));
+                if(found>0) logger.info("Downloaded "+found+" journal segment(s) from Google Drive");
+            } catch (IOException | GeneralSecurityException e) {
+                logger.error("Unable to download the booking journal: "+e.getMessage());
+            }
+        }
+
+        List<JournalFile> creates = new ArrayList<JournalFile>();
+        List<Long> deletes = new ArrayList<Long>();
+        for(BookingJournal.Record rec : BookingJournal.replay(journalDir).values()) {
+            if(BookingJournal.Record.DELETE.equals(rec.op)) {
+                deletes.add(rec.reservationId);
+            } else if(rec.reservation!=null) {
+                rec.reservation.reservationId = rec.reservationId;
+                creates.add(new JournalFile("journal", rec.reservation, rec.seats));
+            }
+        }
+        // Deletes go first: a seat freed by one may have been booked again
+        // by a later create, which would otherwise collide with the row the
+        // delete is about to remove.  Replay keeps only the latest record
+        // per reservation, so no create here is undone by a delete.
+        if(!deletes.isEmpty()) {
+            try {
+                Set<Long> existing = reservationIds();
+                for(Long id : deletes) {
+                    if(existing.contains(id)) deleteReservation(id);
                 }
+            } catch (SQLException se) {
+                logger.error(se.getMessage());
             }
-            if(!foundTgz && isDownloadDb) logger.error("File attendees.tgz does not exist on Google Drive!");
         }
-        else {
-            if(isDownloadDb) logger.error("File attendees.tgz does not exist on Google Drive!");
+        replayJournal(creates, false);
+
+        journal = new BookingJournal(journalDir,
+                "1".equals(UPLOADDB) ? prop.getProperty("gDriveFolder") : null,
+                envLong("journal.segment.bytes", 4L*1024*1024),
+                (int) envLong("journal.compact.segments", 8),
+                envLong("journal.ship.ms", 5000));
+        BookingJournal.install(journal);
+    }
+
+    private Set<Long> reservationIds() throws SQLException {
+        Set<Long> ids = new HashSet<Long>();
+        try (PooledConnection pc = readPool.acquire();
+             ResultSet rs = pc.prepare(SELECT_RESERVATION_IDS).executeQuery()) {
+            while (rs.next()) ids.add(rs.getLong(1));
         }
+        return ids;
     }
 
-    private boolean checkReservation(Long resId) {
-        boolean isExisting = false;
+    /**
+     * Applies journal files that are not in the database yet.  Files are
+     * deduplicated by reservation id and checked against one read of the
+     * existing ids, then inserted {@code db.replay.batch} reservations per
+     * transaction.  A batch that fails is retried one booking at a time so
+     * a single bad file cannot hold back the rest.  Files {@code fromDrive}
+     * are recorded in the booking journal once applied and deleted from
+     * Drive once they are redundant.
+     */
+    private void replayJournal(Collection<JournalFile> files, boolean fromDrive)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        Map<Long,JournalFile> byId = new LinkedHashMap<Long,JournalFile>();
+        List<String> redundant = new ArrayList<String>();
+        for(JournalFile jf : files) {
+            if(jf.reservation==null || jf.seats==null) {
+                logger.error("Unreadable journal file "+jf.name);
+                continue;
+            }
+            long id = jf.reservation.reservationId>0 ?
+                    jf.reservation.reservationId : TSID.fast().toLong();
+            jf.reservation.reservationId = id;
+            if(byId.containsKey(id)) redundant.add(jf.name);
+            else byId.put(id, jf);
+        }
+
+        Set<Long> existing;
         try {
-            PreparedStatement check = conn.prepareStatement(
-                    "select count (*) as resCount from reservations where id=?"
-            );
-            check.setLong(1,resId);
-            ResultSet checkResult = check.executeQuery();
-            while (checkResult.next()) {
-                if(checkResult.getInt(1)>0) {
-                    return true;
+            existing = reservationIds();
+        } catch (SQLException se) {
+            logger.error(se.getMessage());
+            return;
+        }
+        List<JournalFile> toApply = new ArrayList<JournalFile>();
+        for(JournalFile jf : byId.values()) {
+            if(existing.contains(jf.reservation.reservationId)) redundant.add(jf.name);
+            else toApply.add(jf);
+        }
+
+        int batchSize = (int) envLong("db.replay.batch", 500);
+        int applied = 0;
+        for(int from=0; from<toApply.size(); from+=batchSize) {
+            applied += applyBatch(toApply.subList(from, Math.min(toApply.size(), from+batchSize)),
+                    fromDrive);
+        }
+        if(fromDrive && "1".equals(UPLOADDB)) {
+            for(String name : redundant) DriveUploadQueue.getInstance().delete(name);
+        }
+        logger.info("Replayed "+applied+" of "+files.size()+" journal file(s) ("+
+                redundant.size()+" already applied) in "+
+                (System.currentTimeMillis()-start)+" ms");
+    }
+
+    private int applyBatch(List<JournalFile> batch, boolean record) {
+        List<JournalFile> claimed = new ArrayList<JournalFile>();
+        List<String> claimedSeats = new ArrayList<String>();
+        for(JournalFile jf : batch) {
+            List<String> seatIds = new ArrayList<String>();
+            for(Pair<Integer,ReservedSeat> tsp : jf.seats)
+                seatIds.add(SeatOccupancy.seatId(tsp.getValue0(),tsp.getValue1().seat.number));
+            List<String> taken = occupancy.tryReserve(seatIds);
+            if(!taken.isEmpty()) {
+                logger.error("The Reservation could not be created from "+jf.name+
+                        " (seats already taken: "+taken+"); consider removing file from Google Drive");
+                continue;
+            }
+            claimed.add(jf);
+            claimedSeats.addAll(seatIds);
+        }
+        if(claimed.isEmpty()) return 0;
+
+        boolean committed = false;
+        try (PooledConnection pc = writePool.acquire()) {
+            PreparedStatement insert = pc.prepare(INSERT_RESERVATION);
+            PreparedStatement seats = pc.prepare(INSERT_RESERVED_SEAT);
+            for(JournalFile jf : claimed) {
+                Reservation r = jf.reservation;
+                insert.setLong(1,r.reservationId);
+                insert.setString(2,r.name);
+                insert.setInt(3,r.seatQty);
+                insert.addBatch();
+                for(Pair<Integer,ReservedSeat> tsp : jf.seats) {
+                    ReservedSeat rs = tsp.getValue1();
+                    seats.setLong(1,r.reservationId);
+                    seats.setString(2,SeatOccupancy.seatId(tsp.getValue0(),rs.seat.number));
+                    seats.setString(3,rs.person);
+                    seats.setString(4,rs.meal.toString());
+                    seats.addBatch();
                 }
             }
+            try {
+                insert.executeBatch();
+                seats.executeBatch();
+                pc.commit();
+                committed = true;
+                occupancy.commit(claimedSeats);
+            } catch (SQLException se) {
+                insert.clearBatch();
+                seats.clearBatch();
+                pc.rollback();
+                logger.warn("Journal batch of "+claimed.size()+
+                        " failed ("+se.getMessage()+"), replaying one by one");
+            }
         } catch (SQLException se) {
             logger.error(se.getMessage());
-        } catch (Exception e) {
-            logger.error("Uncaught error",e);
+        } finally {
+            if(!committed) occupancy.release(claimedSeats);
+            version.incrementAndGet();
         }
-        return false;
+        if(committed) {
+            if(record && journal!=null) {
+                List<BookingJournal.Record> records = new ArrayList<BookingJournal.Record>();
+                for(JournalFile jf : claimed) records.add(BookingJournal.Record.create(
+                        jf.reservation.reservationId, jf.reservation, jf.seats));
+                try {
+                    journal.append(records);
+                } catch (IOException e) {
+                    logger.error("Booking journal write failed: "+e.getMessage());
+                }
+            }
+            return claimed.size();
+        }
+
+        int applied = 0;
+        for(JournalFile jf : claimed) {
+            BookingResult result = this.createReservationTrans(jf.reservation,jf.seats);
+            if(result.isBooked()) applied++;
+            else logger.error("The Reservation could not be created from "+
+                    jf.name+" ("+result+"); consider removing file from Google Drive");
+        }
+        return applied;
     }
 
     public void close() {
-        try {
-            conn.close();
-        } catch (SQLException e) { }
+        if(journal!=null) journal.close();
+        if(readPool!=null) readPool.close();
+        if(writePool!=null) writePool.close();
     }
 
 }
@@ -1,13 +1,26 @@
 package nblc;
 
+import nblc.rest.MyMessage;
 import org.javatuples.Pair;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * In-memory stand-in for tests.  It has no startup of its own and leaves
+ * {@link Readiness} alone; a module that binds it in place of
+ * DataAccessDerby marks the data layer ready there.
+ */
 public class DataAccessFake implements DataAccess {
 
     private List<Reservation> resList = new ArrayList<Reservation>();
+    private SeatOccupancy occupancy = new SeatOccupancy(MyMessage.tables);
+    // Goes up on every change, like DataAccessDerby's, so a delete and a
+    // create never leave the same version behind.
+    private final AtomicLong version = new AtomicLong();
 
     @Override
     public List<Reservation> getReservations() {
@@ -17,6 +30,7 @@ public class DataAccessFake implements DataAccess {
     @Override
     public long createReservation(Reservation r) {
 	    resList.add(r);
+        version.incrementAndGet();
         return 1L;
     }
 
@@ -24,8 +38,8 @@ public class DataAccessFake implements DataAccess {
     public void createReservedSeat(long resId, int tableNo, ReservedSeat rs) { }
 
     @Override
-    public long createReservationTrans(Reservation r, List<Pair<Integer, ReservedSeat>> tableSeatPairs) {
-        return 0;
+    public BookingResult createReservationTrans(Reservation r, List<Pair<Integer, ReservedSeat>> tableSeatPairs) {
+        return BookingResult.booked(0);
     }
 
     @Override
@@ -38,9 +52,45 @@ public class DataAccessFake implements DataAccess {
         return null;
     }
 
+    @Override
+    public List<Reservation> getReservationsWithSeatIds() {
+        return resList;
+    }
+
+    @Override
+    public List<Reservation> getReservationsPage(long afterId, int limit, String namePrefix) {
+        List<Reservation> page = new ArrayList<Reservation>();
+        for(Reservation r : resList) {
+            if(page.size()>=limit) break;
+            if(r.reservationId<=afterId) continue;
+            if(namePrefix!=null && !r.name.toUpperCase().startsWith(namePrefix.toUpperCase()))
+                continue;
+            page.add(r);
+        }
+        return page;
+    }
+
+    @Override
+    public void forEachAttendee(AttendeeHandler handler) { }
+
     @Override
     public void deleteReservation(long resId) {
+        if(resList.removeIf(r -> r.reservationId==resId)) version.incrementAndGet();
+    }
+
+    @Override
+    public SeatOccupancy getSeatOccupancy() {
+        return occupancy;
+    }
 
+    @Override
+    public long getVersion() {
+        return version.get();
+    }
+
+    @Override
+    public Map<String,Map<String,Long>> getStats() {
+        return new HashMap<String,Map<String,Long>>();
     }
 
 }
@@ -0,0 +1,332 @@
+package nblc;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.CallableStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Backups of the Derby database to Google Drive.
+ * <p>
+ * In the default incremental mode the first backup is a base snapshot
+ * taken with Derby's online backup procedure, which also switches the
+ * database into log archive mode.  Later backups upload only the
+ * transaction log files that are new or have grown since the last one.
+ * A new base is taken once the logs shipped since the previous base add
+ * up to {@code db.backup.rebase.bytes}.  Restoring unpacks the base and
+ * lets Derby roll forward through the logs.
+ * <p>
+ * Once started, logs are shipped every {@code db.backup.ship.ms}, not just
+ * at shutdown.  The database is frozen while they are copied so the log
+ * Derby is writing to goes out whole.  Log control files are not shipped:
+ * roll-forward takes them from the base, which Derby restores first.
+ * <p>
+ * {@code db.backup.mode=full} keeps the old behaviour of tarring the
+ * whole database directory every time.
+ */
+public class DerbyBackup {
+
+    private static Logger logger = LogManager.getLogger(App.class);
+
+    public static final String LEGACY_NAME = "attendees.tar.gz";
+    public static final String BASE_NAME = "attendees-base.tar.gz";
+    private static final String LOG_PREFIX = "attendees.";
+    private static final Pattern LOG_FILE = Pattern.compile("^log[0-9]+\\.dat$");
+
+    private static DerbyBackup single_instance = null;
+
+    private final String dbPath;
+    private final String folder;
+    private final ConnectionPool pool;
+    private final boolean incremental;
+    private final long rebaseBytes;
+    private final Path manifestPath;
+    private final Properties manifest = new Properties();
+    private final DriveUploadQueue queue;
+    private ScheduledExecutorService shipper = null;
+
+    public DerbyBackup(String dbPath, String folder, ConnectionPool pool,
+                       boolean incremental, long rebaseBytes) {
+        this(dbPath, folder, pool, incremental, rebaseBytes, null);
+    }
+
+    /**
+     * With {@code queue} null, files go through the shared
+     * DriveUploadQueue.
+     */
+    public DerbyBackup(String dbPath, String folder, ConnectionPool pool,
+                       boolean incremental, long rebaseBytes, DriveUploadQueue queue) {
+        this.queue = queue;
+        this.dbPath = dbPath;
+        this.folder = folder;
+        this.pool = pool;
+        this.incremental = incremental;
+        this.rebaseBytes = rebaseBytes;
+        this.manifestPath = Paths.get(dbPath+".backup.properties");
+        if(Files.exists(manifestPath)) {
+            try (InputStream in = Files.newInputStream(manifestPath)) {
+                manifest.load(in);
+            } catch (IOException e) {
+                logger.warn("Ignoring unreadable backup manifest: "+e.getMessage());
+                manifest.clear();
+            }
+        }
+    }
+
+    /**
+     * Installs the instance the shutdown hook and the data layer back up
+     * through.
+     */
+    public static synchronized void install(DerbyBackup backup) {
+        single_instance = backup;
+    }
+
+    /**
+     * The installed instance, or null if the database was never opened.
+     */
+    public static synchronized DerbyBackup getInstance() {
+        return single_instance;
+    }
+
+    /**
+     * Backs up every {@code shipMs} from now on, so a crash loses no more
+     * than that much of the shipped log.
+     */
+    public synchronized void start(long shipMs) {
+        if(shipper!=null || shipMs<=0) return;
+        shipper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-backup");
+            t.setDaemon(true);
+            return t;
+        });
+        shipper.scheduleWithFixedDelay(this::backup, shipMs, shipMs, TimeUnit.MILLISECONDS);
+        logger.info("Shipping database logs every "+shipMs+" ms");
+    }
+
+    public synchronized void stop() {
+        if(shipper!=null) shipper.shutdown();
+        shipper = null;
+    }
+
+    private DriveUploadQueue queue() {
+        return queue!=null ? queue : DriveUploadQueue.getInstance();
+    }
+
+    public static boolean isBackupFile(String name) {
+        return name.equals(LEGACY_NAME) || name.equals(BASE_NAME) || isLogFile(name);
+    }
+
+    private static boolean isLogFile(String name) {
+        return name.startsWith(LOG_PREFIX) &&
+                LOG_FILE.matcher(name.substring(LOG_PREFIX.length())).matches();
+    }
+
+    public synchronized void backup() {
+        try {
+            if(!incremental) fullBackup();
+            else if(manifest.getProperty("base.time")==null ||
+                    Long.parseLong(manifest.getProperty("shipped.bytes","0"))>=rebaseBytes)
+                baseBackup();
+            else shipLogs();
+        } catch (IOException | SQLException e) {
+            logger.error("Database backup failed: "+e.getMessage());
+        }
+    }
+
+    private void fullBackup() throws IOException {
+        Path tar = Paths.get(dbPath+".tar.gz");
+        Files.walkFileTree(Paths.get(dbPath), new MyFileVisitor(dbPath, tar.toString()));
+        logger.info("The tarball database backup file is: "+tar);
+        DriveUploadQueue queue = queue();
+        queue.upload(tar.toFile(), folder);
+        // A base left over from incremental mode would win on restore.
+        if(manifest.getProperty("base.time")!=null) {
+            queue.delete(BASE_NAME);
+            for(String key : manifest.stringPropertyNames()) {
+                if(key.startsWith("log.")) queue.delete(LOG_PREFIX+key.substring(4));
+            }
+            manifest.clear();
+            saveManifest();
+        }
+    }
+
+    private void baseBackup() throws IOException, SQLException {
+        Path staging = Paths.get(dbPath+".backup");
+        deleteTree(staging);
+        Files.createDirectories(staging);
+        try (PooledConnection pc = pool.acquire()) {
+            // Derby copies the live database consistently, keeps every log
+            // file written from now on and drops the ones it no longer needs.
+            try (CallableStatement cs = pc.getConnection().prepareCall(
+                    "CALL SYSCS_UTIL.SYSCS_BACKUP_DATABASE_AND_ENABLE_LOG_ARCHIVE_MODE(?, 1)")) {
+                cs.setString(1, staging.toString());
+                cs.execute();
+            }
+            pc.commit();
+        }
+        Path tar = Paths.get(dbPath).resolveSibling(BASE_NAME);
+        Files.walkFileTree(staging, new MyFileVisitor(staging.toString(), tar.toString()));
+        deleteTree(staging);
+        queue().upload(tar.toFile(), folder);
+        queue().delete(LEGACY_NAME);
+        logger.info("Uploading new base backup "+tar+" ("+Files.size(tar)+" bytes)");
+
+        // Forget the stamps but keep the names: logs still on disk are sent
+        // again to go with the new base, the others are deleted from Drive.
+        Set<String> shipped = manifest.stringPropertyNames();
+        manifest.clear();
+        for(String key : shipped) {
+            if(key.startsWith("log.")) manifest.setProperty(key, "");
+        }
+        manifest.setProperty("base.time", Long.toString(System.currentTimeMillis()));
+        manifest.setProperty("shipped.bytes", "0");
+        shipLogs();
+    }
+
+    private void shipLogs() throws IOException, SQLException {
+        DriveUploadQueue queue = queue();
+        long shippedBytes = Long.parseLong(manifest.getProperty("shipped.bytes","0"));
+        Set<String> present = new HashSet<String>();
+        int count = 0;
+        // Frozen, Derby has flushed its log and writes nothing more until
+        // it is thawed, so the copies queued here are all complete.
+        try (PooledConnection pc = pool.acquire()) {
+            call(pc, "CALL SYSCS_UTIL.SYSCS_FREEZE_DATABASE()");
+            try (DirectoryStream<Path> logs = Files.newDirectoryStream(Paths.get(dbPath, "log"))) {
+                for(Path log : logs) {
+                    String name = log.getFileName().toString();
+                    if(!LOG_FILE.matcher(name).matches()) continue;
+                    present.add(name);
+                    long size = Files.size(log);
+                    String stamp = size+":"+Files.getLastModifiedTime(log).toMillis();
+                    if(stamp.equals(manifest.getProperty("log."+name))) continue;
+                    queue.upload(LOG_PREFIX+name, folder, log.toFile());
+                    manifest.setProperty("log."+name, stamp);
+                    shippedBytes += size;
+                    count++;
+                }
+            } finally {
+                call(pc, "CALL SYSCS_UTIL.SYSCS_UNFREEZE_DATABASE()");
+            }
+        }
+        // Logs Derby has discarded since the last base are of no further use.
+        for(String key : manifest.stringPropertyNames()) {
+            if(key.startsWith("log.") && !present.contains(key.substring(4))) {
+                queue.delete(LOG_PREFIX+key.substring(4));
+                manifest.remove(key);
+            }
+        }
+        manifest.setProperty("shipped.bytes", Long.toString(shippedBytes));
+        saveManifest();
+        logger.info("Shipped "+count+" changed log file(s) to Drive");
+    }
+
+    private static void call(PooledConnection pc, String sql) throws SQLException {
+        try (CallableStatement cs = pc.getConnection().prepareCall(sql)) {
+            cs.execute();
+        }
+        pc.commit();
+    }
+
+    private void saveManifest() throws IOException {
+        Path tmp = Paths.get(manifestPath+".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            manifest.store(out, "Derby log files shipped to Google Drive");
+        }
+        Files.move(tmp, manifestPath, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Sets up a restore from backup files downloaded into {@code restoreDir}.
+     * With a base present, the base is unpacked, the logs are put into the
+     * database's log directory and the path to open the database with
+     * {@code rollForwardRecoveryFrom} is returned.  With only a legacy full
+     * archive, it is unpacked over the database and null is returned.
+     */
+    public static String prepareRestore(Path restoreDir, String dbPath) throws IOException {
+        Path base = restoreDir.resolve(BASE_NAME);
+        if(!Files.exists(base)) {
+            Path legacy = restoreDir.resolve(LEGACY_NAME);
+            if(Files.exists(legacy)) {
+                Path archive = Paths.get(dbPath+".tar.gz");
+                Files.move(legacy, archive, StandardCopyOption.REPLACE_EXISTING);
+                untar(archive, Paths.get(dbPath));
+            }
+            return null;
+        }
+        Path backup = restoreDir.resolve("base");
+        untar(base, backup);
+        Path logDir = Paths.get(dbPath, "log");
+        Files.createDirectories(logDir);
+        List<String> logs = new ArrayList<String>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(restoreDir)) {
+            for(Path f : files) {
+                String name = f.getFileName().toString();
+                if(!isLogFile(name)) continue;
+                Files.move(f, logDir.resolve(name.substring(LOG_PREFIX.length())),
+                        StandardCopyOption.REPLACE_EXISTING);
+                logs.add(name);
+            }
+        }
+        logger.info("Restoring base backup and rolling forward through "+logs.size()+" log file(s)");
+        return backup.resolve(Paths.get(dbPath).getFileName()).toString();
+    }
+
+    static void untar(Path archive, Path target) throws IOException {
+        try (TarArchiveInputStream tarIn = new TarArchiveInputStream(ArchiveCodec.GZIP.decompress(
+                new BufferedInputStream(new FileInputStream(archive.toFile()))))) {
+            TarArchiveEntry tarEntry = tarIn.getNextTarEntry();
+            while(tarEntry!=null) {
+                Path file = target.resolve(tarEntry.getName()).normalize();
+                if(!file.startsWith(target.normalize()))
+                    throw new IOException("Archive entry outside target: "+tarEntry.getName());
+                logger.trace("Working: " + file);
+                if(tarEntry.isDirectory()) {
+                    Files.createDirectories(file);
+                } else {
+                    Files.createDirectories(file.getParent());
+                    try (OutputStream out = new FileOutputStream(file.toFile())) {
+                        IOUtils.copy(tarIn,out);
+                    }
+                }
+                tarEntry = tarIn.getNextTarEntry();
+            }
+        }
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        if(!Files.exists(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for(Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(p);
+        }
+    }
+
+}
@@ -4,6 +4,7 @@ import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.FileContent;
+import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.gson.GsonFactory;
@@ -17,6 +18,11 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.api.services.drive.model.Revision;
 import org.apache.logging.log4j.Logger;
@@ -55,6 +61,24 @@ public class DriveQuickstart {
             env.getEnvironmentProperties("client.email");
     private static final String UPLOADDB =
             env.getEnvironmentProperties("uploaddb");
+    private static final String ROOT_URL =
+            env.getEnvironmentProperties("gdrive.root.url");
+    private static final int DOWNLOAD_THREADS = downloadThreads();
+
+    private static Drive service = null;
+    // Drive file name -> file, built by one listing and kept current as
+    // this process creates and deletes files.
+    private static volatile Map<String,File> fileIndex = null;
+
+    private static int downloadThreads() {
+        String value = env.getEnvironmentProperties("gdrive.download.threads");
+        try {
+            if (value != null) return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring gdrive.download.threads=" + value);
+        }
+        return 4;
+    }
 
     private static Credential getCredentials(
             final NetHttpTransport HTTP_TRANSPORT)
@@ -94,23 +118,55 @@ public class DriveQuickstart {
         return credential;
     }
 
-    public static List<File> Drive()
+    /**
+     * The shared Drive client.  Its credential keeps the access token and
+     * refreshes it only when it runs out.  Setting gdrive.root.url points
+     * the client at another server, such as a local stand-in for tests;
+     * without a private key its requests then go out unauthenticated.
+     */
+    public static synchronized Drive service()
             throws IOException, GeneralSecurityException {
-        // Build a new authorized API client service.
-        final NetHttpTransport HTTP_TRANSPORT =
-                GoogleNetHttpTransport.newTrustedTransport();
-        Drive service = new Drive.Builder(HTTP_TRANSPORT, JSON_FACTORY,
-                getCredentials(HTTP_TRANSPORT))
-                .setApplicationName(APPLICATION_NAME)
-                .build();
+        if (service == null) {
+            final NetHttpTransport HTTP_TRANSPORT;
+            HttpRequestInitializer initializer;
+            if (ROOT_URL == null || ROOT_URL.isEmpty()) {
+                HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
+                initializer = getCredentials(HTTP_TRANSPORT);
+            } else {
+                HTTP_TRANSPORT = new NetHttpTransport();
+                initializer = PRIVATE_KEY == null ? request -> { } :
+                        getCredentials(HTTP_TRANSPORT);
+            }
+            Drive.Builder builder = new Drive.Builder(HTTP_TRANSPORT,
+                    JSON_FACTORY, initializer)
+                    .setApplicationName(APPLICATION_NAME);
+            if (ROOT_URL != null && !ROOT_URL.isEmpty()) {
+                logger.info("Using Drive API at " + ROOT_URL);
+                builder.setRootUrl(ROOT_URL.endsWith("/") ? ROOT_URL : ROOT_URL + "/");
+            }
+            service = builder.build();
+        }
+        return service;
+    }
 
-        // Print the names and IDs for up to 10 files.
-        FileList result = service.files().list()
-                .setPageSize(100)
-                .setFields("nextPageToken, files(id, name, size)")
-                .execute();
-        List<File> files = result.getFiles();
-        if (files == null || files.isEmpty()) {
+    /**
+     * Lists every file visible to the service account and rebuilds the
+     * name-to-file index from it.
+     */
+    public static List<File> Drive()
+            throws IOException, GeneralSecurityException {
+        List<File> files = new ArrayList<File>();
+        String pageToken = null;
+        do {
+            FileList result = service().files().list()
+                    .setPageSize(1000)
+                    .setFields("nextPageToken, files(id, name, size)")
+                    .setPageToken(pageToken)
+                    .execute();
+            if (result.getFiles() != null) files.addAll(result.getFiles());
+            pageToken = result.getNextPageToken();
+        } while (pageToken != null);
+        if (files.isEmpty()) {
             logger.info("No files found.");
         } else {
             logger.trace("Files:");
@@ -119,161 +175,191 @@ public class DriveQuickstart {
                         file.getName(), file.getId()));
             }
         }
+        Map<String,File> index = new ConcurrentHashMap<String,File>();
+        for (File f : files) index.putIfAbsent(f.getName(), f);
+        fileIndex = index;
         return files;
     }
 
-    public static void DeleteDb(String filename) throws GeneralSecurityException, IOException {
-        List<File> driveFiles = Drive();
-        File foundFile = null;
-        for (File f : driveFiles) {
-            if (f.getName().equals(filename)) {
-                logger.trace("Found "+filename+"!");
-                foundFile = f;
-                break;
+    private static Map<String,File> index()
+            throws IOException, GeneralSecurityException {
+        Map<String,File> index = fileIndex;
+        if (index == null) {
+            synchronized (DriveQuickstart.class) {
+                if (fileIndex == null) Drive();
+                index = fileIndex;
             }
         }
-        if(foundFile!=null) {
-            final NetHttpTransport HTTP_TRANSPORT =
-                    GoogleNetHttpTransport.newTrustedTransport();
-            Drive service = new Drive.Builder(HTTP_TRANSPORT, JSON_FACTORY,
-                    getCredentials(HTTP_TRANSPORT))
-                    .setApplicationName(APPLICATION_NAME)
-                    .build();
-            service.files().delete(foundFile.getId()).execute();
+        return index;
+    }
+
+    public static void DeleteDb(String filename) throws GeneralSecurityException, IOException {
+        File foundFile = index().get(filename);
+        if (foundFile == null) return;
+        logger.trace("Found "+filename+"!");
+        try {
+            service().files().delete(foundFile.getId()).execute();
+        } catch (GoogleJsonResponseException e) {
+            if (e.getStatusCode() != 404) throw e;
         }
+        fileIndex.remove(filename, foundFile);
     }
 
     public static String Upload(String inFilePath, String folder)
             throws IOException, GeneralSecurityException {
-        if(UPLOADDB.equals("0") && !inFilePath.toLowerCase().contains("json")) {
+        java.io.File filePath = new java.io.File(inFilePath);
+        return Upload(filePath, filePath.getName(), folder);
+    }
+
+    /**
+     * Creates or replaces {@code name} in {@code folder} with the contents
+     * of {@code filePath}.  The index says which of the two it is, so this
+     * is a single API call unless the index turns out to be stale.
+     */
+    public static String Upload(java.io.File filePath, String name, String folder)
+            throws IOException, GeneralSecurityException {
+        if(UPLOADDB.equals("0") && !name.toLowerCase().contains("json")) {
             logger.warn("Database upload is OFF!");
             return null;
         }
-        // Build a new authorized API client service.
-        final NetHttpTransport HTTP_TRANSPORT =
-                GoogleNetHttpTransport.newTrustedTransport();
-        List<File> driveFiles = Drive();
-        Drive service = new Drive.Builder(HTTP_TRANSPORT, JSON_FACTORY,
-                getCredentials(HTTP_TRANSPORT))
-                .setApplicationName(APPLICATION_NAME)
-                .build();
-        java.io.File filePath = new java.io.File(inFilePath);
         File fileMetadata = new File();
-        fileMetadata.setName(filePath.getName());
+        fileMetadata.setName(name);
         FileContent mediaContent =
                 new FileContent("application/x-gzip", filePath);
         try {
-            logger.info("Checking to see if " + filePath.getName() +
-                    " already exists ...");
-            File foundFile = null;
-            for (File f : driveFiles) {
-                if (f.getName().equals(filePath.getName())) {
-                    logger.warn("File already exists!");
-                    foundFile = f;
-                    break;
+            File foundFile = index().get(name);
+            if (foundFile != null) {
+                logger.info("Updating " + name + " now ...");
+                try {
+                    File file = service().files().
+                            update(foundFile.getId(), fileMetadata, mediaContent)
+                            .execute();
+                    return file.getId();
+                } catch (GoogleJsonResponseException e) {
+                    if (e.getStatusCode() != 404) throw e;
+                    logger.warn(name + " was removed from Drive elsewhere");
+                    fileIndex.remove(name, foundFile);
                 }
             }
-            if (foundFile == null) {
-                logger.info("Time for an upload ... " + inFilePath);
-                logger.info("Creating file now ...");
-                fileMetadata.setParents(Collections.singletonList(
-                        driveFiles.stream().filter(f -> f.getName().equals(
-                                folder))
-                                .findFirst().get().getId()));
-                File file = service.files().create(fileMetadata, mediaContent)
-                        .setFields("id")
-                        .execute();
-                return file.getId();
-            } else {
-                logger.info("Updating file now ...");
-                File file = service.files().
-                        update(foundFile.getId(), fileMetadata, mediaContent)
-                        .execute();
-                return file.getId();
-            }
+            File parent = index().get(folder);
+            if (parent == null)
+                throw new FileNotFoundException("No Drive folder named " + folder);
+            logger.info("Time for an upload ... " + filePath);
+            logger.info("Creating file now ...");
+            fileMetadata.setParents(Collections.singletonList(parent.getId()));
+            File file = service().files().create(fileMetadata, mediaContent)
+                    .setFields("id")
+                    .execute();
+            file.setName(name);
+            fileIndex.put(name, file);
+            return file.getId();
         } catch (GoogleJsonResponseException e) {
             logger.error("Unable to upload file: " + e.getDetails());
             throw e;
         }
     }
 
-    public static
-            HashMap<String,ByteArrayOutputStream> Download(boolean isDownloadDb)
+    public interface DownloadHandler {
+        void accept(String name, InputStream in) throws IOException;
+    }
+
+    /**
+     * Streams every Drive file whose name {@code wanted} accepts to
+     * {@code handler}, fetching up to gdrive.download.threads files at
+     * once.  Nothing is buffered here; the handler reads straight from the
+     * HTTP response.  Returns how many files matched.
+     */
+    public static int Download(java.util.function.Predicate<String> wanted,
+                               DownloadHandler handler)
             throws IOException, GeneralSecurityException {
-        // Build a new authorized API client service.
-        HashMap<String,ByteArrayOutputStream> retList = new HashMap<String,ByteArrayOutputStream>();
-        final NetHttpTransport HTTP_TRANSPORT =
-                GoogleNetHttpTransport.newTrustedTransport();
         List<File> driveFiles = Drive();
 
         List<File> foundFiles = new ArrayList<File>();
         for (File f : driveFiles) {
-            if (f.getName().equals("attendees.tar.gz") && isDownloadDb) {
-                logger.trace(f.getName());
-                foundFiles.add(f);
-            } else if (f.getName().toLowerCase().contains("json")) {
+            if (wanted.test(f.getName())) {
                 logger.trace(f.getName());
                 foundFiles.add(f);
             }
         }
+        if (foundFiles.isEmpty()) return 0;
 
-        if(foundFiles.size()>0) {
-            for(File foundFile : foundFiles) {
-                Drive service = new Drive.Builder(HTTP_TRANSPORT, JSON_FACTORY,
-                        getCredentials(HTTP_TRANSPORT))
-                        .setApplicationName(APPLICATION_NAME)
-                        .build();
+        Drive service = service();
+        ExecutorService downloaders = Executors.newFixedThreadPool(
+                Math.min(DOWNLOAD_THREADS, foundFiles.size()));
+        IOException failure = null;
+        try {
+            List<Future<?>> pending = new ArrayList<Future<?>>();
+            for (File foundFile : foundFiles) {
+                pending.add(downloaders.submit(() -> {
+                    download(service, foundFile, handler);
+                    return null;
+                }));
+            }
+            for (Future<?> f : pending) {
                 try {
-                    if (foundFile.getName().equals("attendees.tar.gz")) {
-                        logger.trace("Size of file is "+foundFile.getSize()+
-                                "; its id is "+foundFile.getId());
-                        Drive.Revisions.List oper =
-                                service.revisions().list(foundFile.getId());
-                        oper.setFields("revisions(size,modifiedTime,id)");
-                        List<Triplet<String,Long,DateTime>> revList =
-                                new ArrayList<Triplet<String,Long,DateTime>>();
-                        for (Revision rev : oper.execute().getRevisions()) {
-                            revList.add(Triplet.with(
-                                    rev.getId(),
-                                    rev.getSize(),
-                                    rev.getModifiedTime()));
-                        }
-                        if(revList.size()>1) {
-                            Triplet<String,Long, DateTime> last =
-                                    revList.get(revList.size()-2);
-                            logger.info(
-                                    "Previous version (" + last.getValue(0)+
-                                            ") was created on " +
-                                            last.getValue2() +
-                                            " and had size " +
-                                            last.getValue1());
-                        }
-                        // Remove empty revisions
-                        /*
-                        if(revList.get(revList.size()-1).getValue1()==0) {
-                            for (int i = revList.size()-1; i>=0; i--) {
-                                if(revList.get(i).getValue1()==0)
-                                    service.revisions().delete(
-                                            foundFile.getId(),
-                                            revList.get(i).getValue0());
-                            }
-                        }
-                        */
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) failure = e.getCause() instanceof IOException ?
+                            (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Drive download interrupted");
+        } finally {
+            downloaders.shutdownNow();
+        }
+        if (failure != null) throw failure;
+        return foundFiles.size();
+    }
+
+    private static void download(Drive service, File foundFile,
+                                 DownloadHandler handler) throws IOException {
+        try {
+            if (foundFile.getName().endsWith(".tar.gz")) {
+                logger.trace("Size of file is "+foundFile.getSize()+
+                        "; its id is "+foundFile.getId());
+                Drive.Revisions.List oper =
+                        service.revisions().list(foundFile.getId());
+                oper.setFields("revisions(size,modifiedTime,id)");
+                List<Triplet<String,Long,DateTime>> revList =
+                        new ArrayList<Triplet<String,Long,DateTime>>();
+                for (Revision rev : oper.execute().getRevisions()) {
+                    revList.add(Triplet.with(
+                            rev.getId(),
+                            rev.getSize(),
+                            rev.getModifiedTime()));
+                }
+                if(revList.size()>1) {
+                    Triplet<String,Long, DateTime> last =
+                            revList.get(revList.size()-2);
+                    logger.info(
+                            "Previous version (" + last.getValue(0)+
+                                    ") was created on " +
+                                    last.getValue2() +
+                                    " and had size " +
+                                    last.getValue1());
+                }
+                // Remove empty revisions
+                /*
+                if(revList.get(revList.size()-1).getValue1()==0) {
+                    for (int i = revList.size()-1; i>=0; i--) {
+                        if(revList.get(i).getValue1()==0)
+                            service.revisions().delete(
+                                    foundFile.getId(),
+                                    revList.get(i).getValue0());
                     }
-                    OutputStream outputStream = new ByteArrayOutputStream();
-                    service.files().get(foundFile.getId()).
-                            executeMediaAndDownloadTo(outputStream);
-                    retList.put(foundFile.getName(),
-                            (ByteArrayOutputStream) outputStream);
-                } catch (GoogleJsonResponseException e) {
-                    logger.error("Unable to download file: " + e.getDetails());
-                    throw e;
                 }
+                */
+            }
+            try (InputStream in = service.files().get(foundFile.getId()).
+                    executeMediaAsInputStream()) {
+                handler.accept(foundFile.getName(), in);
             }
-            return retList;
+        } catch (GoogleJsonResponseException e) {
+            logger.error("Unable to download file: " + e.getDetails());
+            throw e;
         }
-        else return null;
     }
 
 }
-
@@ -0,0 +1,283 @@
+package nblc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-behind queue in front of Google Drive.  Uploads and deletes are
+ * keyed by Drive file name; a newer request for a name replaces the one
+ * still waiting, so a burst of writes to the same file costs one call.
+ * A single worker waits {@code drive.upload.batch.ms} for a burst to
+ * settle and then applies everything pending, one Drive call per name.
+ * Failed names are retried with a doubling backoff.
+ * <p>
+ * Every pending request is spooled to {@code drive.spool.dir} before it is
+ * acknowledged and removed only once Drive has accepted it, so requests
+ * left over from a crash or shutdown are picked up on the next start.
+ */
+public class DriveUploadQueue {
+
+    private static Logger logger = LogManager.getLogger(App.class);
+
+    private static final String OP_SUFFIX = ".op";
+    private static final String UPLOAD = "upload";
+    private static final String DELETE = "delete";
+
+    private static class Entry {
+        final String name;
+        final String op;
+        final String folder;
+        int failures = 0;
+        long notBefore = 0;
+        Entry(String name, String op, String folder) {
+            this.name = name;
+            this.op = op;
+            this.folder = folder;
+        }
+    }
+
+    private static DriveUploadQueue single_instance = null;
+
+    private final Path spoolDir;
+    private final Path dataDir;
+    private final long batchMs;
+    private final long maxBackoffMs;
+    private final Map<String,Entry> pending = new LinkedHashMap<String,Entry>();
+    private Thread worker = null;
+    private volatile boolean running = false;
+
+    private long enqueued = 0;
+    private long coalesced = 0;
+    private long batches = 0;
+    private long uploaded = 0;
+    private long deleted = 0;
+    private long failed = 0;
+
+    public DriveUploadQueue(Path spoolDir, long batchMs, long maxBackoffMs) throws IOException {
+        this.spoolDir = spoolDir;
+        this.dataDir = spoolDir.resolve("data");
+        this.batchMs = batchMs;
+        this.maxBackoffMs = maxBackoffMs;
+        Files.createDirectories(dataDir);
+        recover();
+    }
+
+    public static synchronized DriveUploadQueue getInstance() {
+        if (single_instance == null) {
+            EnvironmentProperties env = new DefaultEnvironmentProperties();
+            String dir = env.getEnvironmentProperties("drive.spool.dir");
+            if(dir==null || dir.trim().isEmpty())
+                dir = System.getProperty("java.io.tmpdir")+"/venue-drive-spool";
+            try {
+                single_instance = new DriveUploadQueue(Paths.get(dir.trim()),
+                        envLong(env, "drive.upload.batch.ms", 2000),
+                        envLong(env, "drive.upload.backoff.max.ms", 300000));
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to use Drive spool "+dir, e);
+            }
+            single_instance.start();
+        }
+        return single_instance;
+    }
+
+    private static long envLong(EnvironmentProperties env, String key, long defaultValue) {
+        String value = env.getEnvironmentProperties(key);
+        if(value==null || value.trim().isEmpty()) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> ops = Files.newDirectoryStream(spoolDir, "*"+OP_SUFFIX)) {
+            for(Path opFile : ops) {
+                String fileName = opFile.getFileName().toString();
+                String name = fileName.substring(0, fileName.length()-OP_SUFFIX.length());
+                String[] lines = new String(Files.readAllBytes(opFile),
+                        StandardCharsets.UTF_8).split("\n", -1);
+                String op = lines[0];
+                String folder = lines.length>1 ? lines[1] : "";
+                if(UPLOAD.equals(op) && !Files.exists(dataDir.resolve(name))) {
+                    Files.delete(opFile);
+                    continue;
+                }
+                pending.put(name, new Entry(name, op, folder));
+            }
+        }
+        if(!pending.isEmpty())
+            logger.info("Recovered "+pending.size()+" spooled Drive request(s)");
+    }
+
+    public synchronized void start() {
+        if(running) return;
+        running = true;
+        worker = new Thread(this::runWorker, "drive-upload");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Queues {@code content} to be stored on Drive as {@code name} in
+     * {@code folder}, replacing any request for the same name still waiting.
+     */
+    public void upload(String name, String folder, byte[] content) throws IOException {
+        Path tmp = Files.createTempFile(dataDir, name, ".tmp");
+        Files.write(tmp, content);
+        spool(name, UPLOAD, folder, tmp);
+    }
+
+    /**
+     * Queues a copy of {@code file}, taken now, to be stored on Drive under
+     * its own name.
+     */
+    public void upload(java.io.File file, String folder) throws IOException {
+        upload(file.getName(), folder, file);
+    }
+
+    /**
+     * Queues a copy of {@code file}, taken now, to be stored on Drive as
+     * {@code name}.
+     */
+    public void upload(String name, String folder, java.io.File file) throws IOException {
+        Path tmp = Files.createTempFile(dataDir, name, ".tmp");
+        Files.copy(file.toPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+        spool(name, UPLOAD, folder, tmp);
+    }
+
+    public void delete(String name) throws IOException {
+        spool(name, DELETE, "", null);
+    }
+
+    private synchronized void spool(String name, String op, String folder, Path data)
+            throws IOException {
+        if(data!=null) Files.move(data, dataDir.resolve(name),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Path tmp = spoolDir.resolve(name+OP_SUFFIX+".tmp");
+        Files.write(tmp, (op+"\n"+(folder==null ? "" : folder)).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, spoolDir.resolve(name+OP_SUFFIX),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        enqueued++;
+        if(pending.remove(name)!=null) coalesced++;
+        pending.put(name, new Entry(name, op, folder));
+        notifyAll();
+    }
+
+    private void runWorker() {
+        while(running) {
+            List<Entry> batch;
+            try {
+                batch = nextBatch();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if(batch.isEmpty()) continue;
+            List<Entry> done = new ArrayList<Entry>();
+            List<Entry> failures = new ArrayList<Entry>();
+            for(Entry e : batch) {
+                try {
+                    if(UPLOAD.equals(e.op)) {
+                        DriveQuickstart.Upload(dataDir.resolve(e.name).toFile(), e.name, e.folder);
+                    } else {
+                        DriveQuickstart.DeleteDb(e.name);
+                    }
+                    done.add(e);
+                } catch (Exception ex) {
+                    logger.warn("Drive "+e.op+" of "+e.name+" failed: "+ex.getMessage());
+                    failures.add(e);
+                }
+            }
+            finish(done, failures);
+        }
+    }
+
+    /**
+     * Waits for work, lets a burst settle for {@code batchMs}, then takes
+     * every request whose backoff has run out.
+     */
+    private synchronized List<Entry> nextBatch() throws InterruptedException {
+        while(pending.isEmpty()) wait();
+        long settled = System.currentTimeMillis() + batchMs;
+        for(long left=batchMs; left>0; left=settled-System.currentTimeMillis()) wait(left);
+        long now = System.currentTimeMillis();
+        long nextDue = Long.MAX_VALUE;
+        List<Entry> batch = new ArrayList<Entry>();
+        for(Entry e : pending.values()) {
+            if(e.notBefore<=now) batch.add(e);
+            else nextDue = Math.min(nextDue, e.notBefore);
+        }
+        if(batch.isEmpty() && nextDue!=Long.MAX_VALUE) wait(nextDue-now);
+        else if(!batch.isEmpty()) batches++;
+        return batch;
+    }
+
+    private synchronized void finish(List<Entry> done, List<Entry> failures) {
+        for(Entry e : done) {
+            if(UPLOAD.equals(e.op)) uploaded++;
+            else deleted++;
+            // A newer request for the same name arrived meanwhile; keep it.
+            if(pending.get(e.name)!=e) continue;
+            pending.remove(e.name);
+            try {
+                Files.deleteIfExists(spoolDir.resolve(e.name+OP_SUFFIX));
+                Files.deleteIfExists(dataDir.resolve(e.name));
+            } catch (IOException ex) {
+                logger.warn("Unable to clear spooled "+e.name+": "+ex.getMessage());
+            }
+        }
+        long now = System.currentTimeMillis();
+        for(Entry e : failures) {
+            failed++;
+            if(pending.get(e.name)!=e) continue;
+            e.failures++;
+            long backoff = Math.min(maxBackoffMs, batchMs << Math.min(e.failures, 20));
+            e.notBefore = now + backoff;
+            logger.info("Retrying Drive "+e.op+" of "+e.name+" in "+backoff+" ms");
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits up to {@code timeoutMs} for everything pending to reach Drive.
+     */
+    public synchronized boolean flush(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while(!pending.isEmpty()) {
+            long left = deadline - System.currentTimeMillis();
+            if(left<=0) return false;
+            wait(Math.min(left, 100));
+        }
+        return true;
+    }
+
+    public void stop() {
+        running = false;
+        if(worker!=null) worker.interrupt();
+    }
+
+    public synchronized Map<String,Long> getStats() {
+        Map<String,Long> stats = new LinkedHashMap<String,Long>();
+        stats.put("pending", (long) pending.size());
+        stats.put("enqueued", enqueued);
+        stats.put("coalesced", coalesced);
+        stats.put("batches", batches);
+        stats.put("uploaded", uploaded);
+        stats.put("deleted", deleted);
+        stats.put("failed", failed);
+        return stats;
+    }
+
+}
@@ -1,45 +1,92 @@
 package nblc;
 
 import com.google.gson.Gson;
+import io.hypersistence.tsid.TSID;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.StatusCode;
 import org.eclipse.jetty.websocket.api.WebSocketAdapter;
-import org.eclipse.jetty.websocket.api.WebSocketException;
+import org.eclipse.jetty.websocket.api.WebSocketPingPongListener;
 
-import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
-public class MessagingAdapter extends WebSocketAdapter {
+public class MessagingAdapter extends WebSocketAdapter implements WebSocketPingPongListener {
 
     private static Logger logger = LogManager.getLogger(App.class);
+    private static final Gson GSON = new Gson();
     private final CountDownLatch closureLatch = new CountDownLatch(1);
+    private String holdOwner = null;
+    // All sends go through the peer's queue; nothing here blocks on the
+    // network.
+    private WsPeer peer = null;
+    // Whether the client negotiated SeatCodec's binary protocol.
+    private boolean binary = false;
 
     @Override
     public void onWebSocketConnect(Session sess) {
         super.onWebSocketConnect(sess);
         logger.debug("Endpoint connected: {}", sess);
-        WsSingleton.getInstance().sessionList.add(sess);
-        WsSingleton.getInstance().sessionDict.put(sess,new ArrayList<String>());
-        for(Session s : WsSingleton.getInstance().sessionDict.keySet()) {
-            for (String seat : WsSingleton.getInstance().sessionDict.get(s)) {
-                try {
-                    this.getSession().getRemote().sendString("{\"seat\":\""+seat+"\", \"state\":\"pending\"}");
-                } catch (IOException e) { }
-            }
+        holdOwner = TSID.fast().toString();
+        binary = SeatCodec.PROTOCOL.equals(sess.getUpgradeResponse().getAcceptedSubProtocol());
+        peer = WsSingleton.getInstance().register(sess,holdOwner,binary);
+        SeatBroadcaster broadcaster = SeatBroadcaster.getInstance();
+        // The booking form passes this back so the server can tell the
+        // party's own holds apart from everyone else's.
+        peer.send("{\"holdToken\":\""+holdOwner+"\", \"epoch\":"+broadcaster.getEpoch()+"}");
+        // A reconnect whose number cannot be served, e.g. one from before
+        // a restart, still goes through resume() so the client is told to
+        // fetch the reserved seats again.
+        String since = sinceParameter(sess);
+        if(since!=null) broadcaster.resume(peer, resumeFrom(since));
+        else sendPendingSeats();
+    }
+
+    // A reconnecting client asks for ?since=<epoch>-<seq>, the last delta
+    // it saw; null on a first connect.
+    private static String sinceParameter(Session sess) {
+        Map<String,List<String>> params = sess.getUpgradeRequest().getParameterMap();
+        List<String> values = params==null ? null : params.get("since");
+        return values==null || values.isEmpty() ? null : values.get(0);
+    }
+
+    // The sequence number in since; -1 if it is malformed or was handed
+    // out before this server started.
+    private static long resumeFrom(String since) {
+        String[] parts = since.split("-");
+        try {
+            if(parts.length!=2 ||
+                    Long.parseLong(parts[0])!=SeatBroadcaster.getInstance().getEpoch())
+                return -1;
+            return Long.parseLong(parts[1]);
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
-    public void sendReOpenMsg(String seat) {
-        for(Session s : WsSingleton.getInstance().sessionList) {
-            try {
-                s.getRemote().sendString("{\"seat\":\""+seat+"\", \"state\":\"nonpending\"}");
-            } catch (IOException | WebSocketException e) {}
+    // All seats held right now, as one ready-made frame.
+    private void sendPendingSeats() {
+        SeatBroadcaster.getInstance().sendSnapshot(peer);
+    }
+
+    // One seat to this client only, in whichever protocol it speaks.
+    private void sendSeat(String seat, String state) {
+        if(binary) {
+            ByteBuffer frame = SeatCodec.frame(SeatCodec.REPLY, 0, 1);
+            if(SeatCodec.put(frame, seat, state)) {
+                frame.flip();
+                peer.send(frame);
+            }
         }
+        else peer.send("{\"seat\":\""+seat+"\", \"state\":\""+state+"\"}");
+    }
+
+    public static void sendReOpenMsg(String seat) {
+        SeatBroadcaster.getInstance().publish(seat, "nonpending", null);
     }
 
     public class SeatState {
@@ -51,35 +98,19 @@ public class MessagingAdapter extends WebSocketAdapter {
     public void onWebSocketText(String message)
     {
         super.onWebSocketText(message);
-
-        if(!message.equals("ping") && !message.equals("initSeats")) {
-            Gson g = new Gson();
-            SeatState ss = g.fromJson(message, SeatState.class);
-            if (ss.state.equals("pending")) {
-                WsSingleton.getInstance().sessionDict.get(getSession()).add(ss.seat);
-            } else if (ss.state.equals("reserved")) {
-                WsSingleton.getInstance().sessionDict.get(getSession()).remove(ss.seat);
-            }
-            logger.debug("Received TEXT message: {}", message);
+        peer.touch();
+
+        // Control messages are answered here and never relayed.  The
+        // picker sends "ping" only while the user is active on the page.
+        SeatHolds holds = SeatHolds.getInstance();
+        if(message.equals("ping")) {
+            holds.renew(holdOwner);
+            WsSingleton.getInstance().controlHandled();
         }
-
-        List<Session> bad = new ArrayList<Session>();
-        for(Session s : WsSingleton.getInstance().sessionList) {
-            if(s!=this.getSession()) {
-                try {
-                    s.getRemote().sendString(message);
-                } catch (IOException | WebSocketException e) {
-                    bad.add(s);
-                    //throw new RuntimeException(e);
-                }
-            }
-        }
-        for(Session b : bad) {
-            WsSingleton.getInstance().sessionList.remove(b);
-            for(String seat : WsSingleton.getInstance().sessionDict.get(b)) {
-                this.sendReOpenMsg(seat);
-            }
-            WsSingleton.getInstance().sessionDict.remove(b);
+        else if(!message.equals("initSeats")) {
+            SeatState ss = GSON.fromJson(message, SeatState.class);
+            logger.debug("Received TEXT message: {}", message);
+            seatChanged(ss.seat, ss.state);
         }
 
         if (message.toLowerCase(Locale.US).contains("bye"))
@@ -87,22 +118,72 @@ public class MessagingAdapter extends WebSocketAdapter {
             getSession().close(StatusCode.NORMAL, "Thanks");
         }
         else if (message.toLowerCase(Locale.US).contains("initseats")) {
-            for(Session s : WsSingleton.getInstance().sessionDict.keySet()) {
-                for (String seat : WsSingleton.getInstance().sessionDict.get(s)) {
-                    try {
-                        this.getSession().getRemote().sendString("{\"seat\":\""+seat+"\", \"state\":\"pending\"}");
-                    } catch (IOException e) { }
-                }
+            sendPendingSeats();
+            WsSingleton.getInstance().controlHandled();
+        }
+    }
+
+    @Override
+    public void onWebSocketBinary(byte[] payload, int offset, int len)
+    {
+        super.onWebSocketBinary(payload, offset, len);
+        peer.touch();
+        SeatCodec.forEach(payload, offset, len, this::seatChanged);
+    }
+
+    @Override
+    public void onWebSocketPing(ByteBuffer payload)
+    {
+        // Jetty answers with the pong itself.
+        peer.touch();
+    }
+
+    // The answer to the server's heartbeat.  The browser sends it on its
+    // own, so it proves the connection is alive but not that anyone is
+    // still at the form; it does not renew the party's holds.
+    @Override
+    public void onWebSocketPong(ByteBuffer payload)
+    {
+        WsSingleton.getInstance().pongReceived(peer);
+    }
+
+    private void seatChanged(String seat, String state) {
+        SeatHolds holds = SeatHolds.getInstance();
+        if (state.equals("pending")) {
+            if(!holds.hold(seat, holdOwner)) {
+                // Someone else got there first; tell this client only.
+                sendSeat(seat, "pending");
+                return;
             }
+            // Picking another seat shows the party is still there.
+            holds.renew(holdOwner);
+        } else if (state.equals("nonpending")) {
+            // Only the party holding a seat can let it go; anyone else's
+            // word on it is dropped.
+            if(!holds.release(seat, holdOwner)) return;
+        } else {
+            // Seats become reserved only once a booking commits, and the
+            // data layer announces that itself.
+            return;
         }
+        // Everyone else hears about it in the next delta frame.
+        SeatBroadcaster.getInstance().publish(seat, state, getSession());
     }
 
     @Override
     public void onWebSocketClose(int statusCode, String reason)
     {
+        Session sess = getSession();
         super.onWebSocketClose(statusCode, reason);
         logger.debug("Socket Closed: [{}] {}", statusCode, reason);
 
+        if(sess!=null) {
+            WsPeer gone = WsSingleton.getInstance().unregister(sess);
+            if(gone!=null) gone.markDropped();
+        }
+        // Seats this connection was holding open up for everyone again.
+        if(holdOwner!=null) SeatHolds.getInstance().releaseAll(holdOwner);
+
         closureLatch.countDown();
     }
 
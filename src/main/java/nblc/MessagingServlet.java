@@ -6,6 +6,15 @@ import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
 public class MessagingServlet extends WebSocketServlet {
     @Override
     public void configure(WebSocketServletFactory factory) {
-        factory.register(MessagingAdapter.class);
+        // Clients that ask for the binary seat protocol get it; everyone
+        // else stays on JSON.
+        factory.setCreator((req, resp) -> {
+            if(req.hasSubProtocol(SeatCodec.PROTOCOL))
+                resp.setAcceptedSubProtocol(SeatCodec.PROTOCOL);
+            return new MessagingAdapter();
+        });
+        SeatHolds.getInstance().addListener(MessagingAdapter::sendReOpenMsg);
+        factory.getPolicy().setIdleTimeout(WsSingleton.getInstance().getIdleTimeoutMs());
+        WsSingleton.getInstance().startHeartbeat();
     }
 }
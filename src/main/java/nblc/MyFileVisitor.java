@@ -2,7 +2,6 @@ package nblc;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -20,14 +19,19 @@ public class MyFileVisitor implements FileVisitor<Path> {
     TarArchiveOutputStream tOut = null;
     OutputStream fOut = null;
     BufferedOutputStream buffOut = null;
-    GzipCompressorOutputStream gzOut = null;
+    OutputStream gzOut = null;
 
     public MyFileVisitor(String pathSrc, String tarFileName) throws IOException {
+        this(pathSrc, tarFileName, ArchiveCodec.GZIP);
+    }
+
+    public MyFileVisitor(String pathSrc, String tarFileName, ArchiveCodec codec)
+            throws IOException {
         super();
         this.source = Paths.get(pathSrc);
         fOut = Files.newOutputStream(Paths.get(tarFileName));
         buffOut = new BufferedOutputStream(fOut);
-        gzOut = new GzipCompressorOutputStream(buffOut);
+        gzOut = codec.compress(buffOut);
         tOut = new TarArchiveOutputStream(gzOut);
     }
 
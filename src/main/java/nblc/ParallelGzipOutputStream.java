@@ -0,0 +1,161 @@
+package nblc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Gzip compression spread over several threads.  The input is cut into
+ * fixed-size blocks and each block is deflated on its own as a complete
+ * gzip member; the members are written out in order.  A file made of
+ * concatenated members is plain gzip (RFC 1952), which gunzip and
+ * {@code GzipCompressorInputStream(in, true)} read as one stream.
+ * <p>
+ * At most two blocks per thread are held in memory; a writer that gets
+ * ahead of the compressors waits for the oldest block to be written.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    // ID1 ID2 CM=deflate FLG MTIME(4) XFL OS=unknown
+    private static final byte[] HEADER = {
+            0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final int level;
+    private final int maxInFlight;
+    private final ExecutorService compressors;
+    private final Deque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+
+    private byte[] block;
+    private int fill = 0;
+    private long members = 0;
+    private boolean closed = false;
+
+    public ParallelGzipOutputStream(OutputStream out, int threads, int blockSize) {
+        this(out, threads, blockSize, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public ParallelGzipOutputStream(OutputStream out, int threads, int blockSize, int level) {
+        if(threads<1 || blockSize<1) throw new IllegalArgumentException(
+                "threads and blockSize must be positive");
+        this.out = out;
+        this.blockSize = blockSize;
+        this.level = level;
+        this.maxInFlight = 2*threads;
+        this.block = new byte[blockSize];
+        AtomicInteger count = new AtomicInteger();
+        this.compressors = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "gzip-"+count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[fill++] = (byte) b;
+        if(fill==blockSize) submitBlock();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while(len>0) {
+            int n = Math.min(len, blockSize-fill);
+            System.arraycopy(b, off, block, fill, n);
+            fill += n;
+            off += n;
+            len -= n;
+            if(fill==blockSize) submitBlock();
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] data = block;
+        final int length = fill;
+        block = new byte[blockSize];
+        fill = 0;
+        members++;
+        inFlight.add(compressors.submit(() -> member(data, length, level)));
+        while(inFlight.size()>maxInFlight) writeOldest();
+    }
+
+    private void writeOldest() throws IOException {
+        try {
+            out.write(inFlight.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Compression interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    static byte[] member(byte[] data, int length, int level) throws IOException {
+        ByteArrayOutputStream member = new ByteArrayOutputStream(length/2+64);
+        member.write(HEADER);
+        Deflater deflater = new Deflater(level, true);
+        try {
+            DeflaterOutputStream deflate = new DeflaterOutputStream(member, deflater, 64*1024);
+            deflate.write(data, 0, length);
+            deflate.finish();
+        } finally {
+            deflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        writeIntLE(member, (int) crc.getValue());
+        writeIntLE(member, length);
+        return member.toByteArray();
+    }
+
+    private static void writeIntLE(OutputStream out, int v) throws IOException {
+        out.write(v);
+        out.write(v >>> 8);
+        out.write(v >>> 16);
+        out.write(v >>> 24);
+    }
+
+    /**
+     * Passes on a flush without cutting the current block short; only
+     * blocks that are already complete reach {@code out}.
+     */
+    @Override
+    public void flush() throws IOException {
+        while(!inFlight.isEmpty() && inFlight.peekFirst().isDone()) writeOldest();
+        out.flush();
+    }
+
+    /**
+     * Compresses what is left and writes every member, leaving {@code out}
+     * open.  An empty input still yields one (empty) gzip member.
+     */
+    public void finish() throws IOException {
+        if(fill>0 || members==0) submitBlock();
+        while(!inFlight.isEmpty()) writeOldest();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        try {
+            finish();
+        } finally {
+            compressors.shutdownNow();
+            out.close();
+        }
+    }
+
+}
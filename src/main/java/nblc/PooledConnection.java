@@ -0,0 +1,84 @@
+package nblc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One unit of work's hold on a pooled connection.  Closing it hands the
+ * connection back to its pool; any write that was not committed is rolled
+ * back first so the next borrower never inherits half a transaction.
+ * Statements obtained through {@link #prepare(String)} are cached with the
+ * connection and must not be closed by the caller.
+ */
+public class PooledConnection implements AutoCloseable {
+
+    private final ConnectionPool pool;
+    private final Connection conn;
+    private final Map<String,PreparedStatement> statements =
+            new HashMap<String,PreparedStatement>();
+    private boolean broken = false;
+
+    PooledConnection(ConnectionPool pool, Connection conn) {
+        this.pool = pool;
+        this.conn = conn;
+    }
+
+    public Connection getConnection() { return conn; }
+
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if(stmt!=null && !stmt.isClosed()) {
+            // A caller that failed between addBatch and executeBatch may
+            // have left rows behind; they must not go out with ours.
+            stmt.clearParameters();
+            stmt.clearBatch();
+            pool.statementCacheHit();
+            return stmt;
+        }
+        stmt = conn.prepareStatement(sql);
+        statements.put(sql, stmt);
+        pool.statementCacheMiss();
+        return stmt;
+    }
+
+    public void commit() throws SQLException { conn.commit(); }
+
+    public void rollback() {
+        try {
+            if(!conn.getAutoCommit()) conn.rollback();
+        } catch (SQLException e) {
+            broken = true;
+        }
+    }
+
+    boolean isUsable() {
+        try {
+            return !broken && !conn.isClosed();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    void closeQuietly() {
+        rollback();
+        for(PreparedStatement stmt : statements.values()) {
+            try {
+                stmt.close();
+            } catch (SQLException e) { }
+        }
+        statements.clear();
+        try {
+            conn.close();
+        } catch (SQLException e) { }
+    }
+
+    @Override
+    public void close() {
+        if(!pool.isReadOnly()) rollback();
+        pool.release(this);
+    }
+
+}
@@ -0,0 +1,92 @@
+package nblc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Whether the data layer has finished starting.  The database is restored
+ * from Google Drive, opened and brought up to date in the background
+ * while Jetty already serves the static pages; until then REST calls are
+ * answered with 503 and a Retry-After header.
+ */
+public class Readiness {
+
+    private static Logger logger = LogManager.getLogger(App.class);
+
+    public enum State { STARTING, READY, FAILED }
+
+    private static Readiness single_instance = null;
+
+    private final long startedAt = System.currentTimeMillis();
+    private volatile State state = State.STARTING;
+    private volatile String stage = "starting";
+    private volatile String failure = null;
+    private volatile long readyAfterMs = 0;
+
+    public static synchronized Readiness getInstance() {
+        if (single_instance == null) single_instance = new Readiness();
+        return single_instance;
+    }
+
+    public void stage(String stage) {
+        this.stage = stage;
+        logger.info("Startup: "+stage);
+    }
+
+    public synchronized void ready() {
+        readyAfterMs = System.currentTimeMillis()-startedAt;
+        state = State.READY;
+        stage = "ready";
+        notifyAll();
+        logger.info("Data layer ready after "+readyAfterMs+" ms");
+    }
+
+    public synchronized void failed(Throwable t) {
+        failure = stage+": "+t;
+        state = State.FAILED;
+        notifyAll();
+        logger.error("Data layer failed to start during "+stage, t);
+    }
+
+    public boolean isReady() {
+        return state==State.READY;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getStage() {
+        return stage;
+    }
+
+    public String getFailure() {
+        return failure;
+    }
+
+    /**
+     * Waits up to {@code timeoutMs} for startup to finish one way or the
+     * other; returns whether the data layer is ready.
+     */
+    public synchronized boolean await(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis()+timeoutMs;
+        while(state==State.STARTING) {
+            long left = deadline-System.currentTimeMillis();
+            if(left<=0) break;
+            wait(left);
+        }
+        return isReady();
+    }
+
+    public Map<String,Long> getStats() {
+        Map<String,Long> stats = new LinkedHashMap<String,Long>();
+        stats.put("ready", isReady() ? 1L : 0L);
+        stats.put("startupMs", isReady() ? readyAfterMs :
+                System.currentTimeMillis()-startedAt);
+        return stats;
+    }
+
+}
@@ -0,0 +1,378 @@
+package nblc;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects seat-state changes for {@code ws.broadcast.window.ms}
+ * milliseconds (30 by default) and sends them to every session as one
+ * delta frame, {@code {"seq":..,"delta":[{"seat":..,"state":..},..]}} or
+ * the same as {@link SeatCodec} records for binary sessions.  Only the
+ * latest state of each seat within a window is sent, and a session never
+ * gets its own changes back.  A window of 0 sends every change as soon as
+ * it is published.
+ * <p>
+ * Every delta frame takes the next sequence number.  The seats pending
+ * after it are kept as a ready-made snapshot frame,
+ * {@code {"seq":..,"snapshot":["S1-2",..]}}, tagged with the same number,
+ * so a client that connects or re-initializes gets one frame however many
+ * seats are held; deltas it later receives with a number not above the
+ * snapshot's are already included in it.
+ * <p>
+ * The last {@code ws.replay.frames} deltas (1024 by default) are kept in
+ * a ring.  A client that reconnects with the number it last saw gets what
+ * it missed merged into one delta.  If the ring no longer reaches back
+ * that far it gets the pending-seat snapshot flagged "refetch", since
+ * bookings and deletions it missed are not in the snapshot and must be
+ * fetched again over REST.  Numbers start again at 0 on every server
+ * start; {@link #getEpoch()} tells runs apart.
+ */
+public class SeatBroadcaster {
+
+    private static SeatBroadcaster single_instance = null;
+
+    private static class Change {
+        final String seat;
+        String state;
+        Session origin;
+        final long since;
+
+        Change(String seat, String state, Session origin, long since) {
+            this.seat = seat;
+            this.state = state;
+            this.origin = origin;
+            this.since = since;
+        }
+    }
+
+    private final long windowMs;
+    private final ScheduledExecutorService timer;
+    private Map<String,Change> window = new LinkedHashMap<String,Change>();
+    // Frames the same changes would have cost sent one by one.
+    private long unbatchedFrames = 0;
+    // Keeps delta frames going out in sequence order.
+    private final Object sendLock = new Object();
+
+    private final long epoch = System.currentTimeMillis();
+    private long seq = 0;
+    // Seat states of delta seq, at index seq % ring.length.
+    private final Map<String,String>[] ring;
+    private final Set<String> pending = new LinkedHashSet<String>();
+    private String snapshotText = null;
+    private ByteBuffer snapshotBinary = null;
+
+    private long published = 0;
+    private long coalesced = 0;
+    private long windows = 0;
+    private long framesSent = 0;
+    private long framesSaved = 0;
+    private long textBytes = 0;
+    private long binaryBytes = 0;
+    private long delayTotalMs = 0;
+    private long delayMaxMs = 0;
+    private long delayedChanges = 0;
+    private long snapshotsSent = 0;
+    private long snapshotsBuilt = 0;
+    private long resumes = 0;
+    private long resumeSnapshots = 0;
+    private long changesReplayed = 0;
+
+    @SuppressWarnings("unchecked")
+    private SeatBroadcaster() {
+        EnvironmentProperties env = new DefaultEnvironmentProperties();
+        windowMs = Math.max(0, envLong(env, "ws.broadcast.window.ms", 30));
+        ring = new Map[(int) Math.max(1, envLong(env, "ws.replay.frames", 1024))];
+        timer = windowMs==0 ? null : Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "seat-broadcast");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static synchronized SeatBroadcaster getInstance() {
+        if (single_instance == null) single_instance = new SeatBroadcaster();
+        return single_instance;
+    }
+
+    private static long envLong(EnvironmentProperties env, String key, long defaultValue) {
+        String value = env.getEnvironmentProperties(key);
+        if(value==null || value.trim().isEmpty()) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Queues {@code seat}'s new {@code state} for the next delta frame.
+     * {@code origin} is the session that made the change and already
+     * knows about it; null sends it to everyone.
+     */
+    public void publish(String seat, String state, Session origin) {
+        boolean first;
+        synchronized (this) {
+            published++;
+            unbatchedFrames += WsSingleton.getInstance().sessionCount()-(origin==null ? 0 : 1);
+            Change change = window.get(seat);
+            if(change!=null) {
+                coalesced++;
+                change.state = state;
+                change.origin = origin;
+                return;
+            }
+            first = window.isEmpty();
+            window.put(seat, new Change(seat, state, origin, System.currentTimeMillis()));
+        }
+        if(timer==null) flush();
+        else if(first) timer.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends everything collected so far as the next delta frame.
+     */
+    public void flush() {
+        synchronized (sendLock) {
+            Collection<Change> changes;
+            long unbatched, frameSeq;
+            synchronized (this) {
+                if(window.isEmpty()) return;
+                changes = window.values();
+                unbatched = unbatchedFrames;
+                window = new LinkedHashMap<String,Change>();
+                unbatchedFrames = 0;
+                frameSeq = ++seq;
+                Map<String,String> states = new LinkedHashMap<String,String>();
+                for(Change change : changes) {
+                    if(change.state.equals("pending")) pending.add(change.seat);
+                    else pending.remove(change.seat);
+                    states.put(change.seat, change.state);
+                }
+                ring[(int) (frameSeq % ring.length)] = states;
+                snapshotText = null;
+                snapshotBinary = null;
+            }
+            send(changes, unbatched, frameSeq);
+        }
+    }
+
+    private void send(Collection<Change> changes, long unbatched, long frameSeq) {
+        long now = System.currentTimeMillis();
+        // Both forms are built at most once per window, plus one per
+        // session that made some of the changes.
+        String allText = null;
+        ByteBuffer allBinary = null;
+        long sent = 0, text = 0, binary = 0;
+        for(WsPeer peer : WsSingleton.getInstance().peers()) {
+            Session except = null;
+            for(Change change : changes) {
+                if(change.origin==peer.getSession()) {
+                    except = peer.getSession();
+                    break;
+                }
+            }
+            if(peer.isBinary()) {
+                ByteBuffer frame;
+                if(except!=null) frame = binaryFrame(changes, frameSeq, except);
+                else frame = allBinary==null ? (allBinary = binaryFrame(changes, frameSeq, null)) : allBinary;
+                if(frame!=null && peer.send(frame)) {
+                    sent++;
+                    binary += frame.remaining();
+                }
+            } else {
+                String frame;
+                if(except!=null) frame = frame(changes, frameSeq, except);
+                else frame = allText==null ? (allText = frame(changes, frameSeq, null)) : allText;
+                if(frame!=null && peer.send(frame)) {
+                    sent++;
+                    text += frame.length();
+                }
+            }
+        }
+        synchronized (this) {
+            windows++;
+            framesSent += sent;
+            textBytes += text;
+            binaryBytes += binary;
+            framesSaved += Math.max(0, unbatched-sent);
+            for(Change change : changes) {
+                long delay = now-change.since;
+                delayTotalMs += delay;
+                delayMaxMs = Math.max(delayMaxMs, delay);
+                delayedChanges++;
+            }
+        }
+    }
+
+    // The changes as one JSON delta, leaving out those made by
+    // {@code except}; null if that leaves nothing.
+    private static String frame(Collection<Change> changes, long frameSeq, Session except) {
+        List<String> items = new ArrayList<String>(changes.size());
+        for(Change change : changes) {
+            if(except!=null && change.origin==except) continue;
+            items.add("{\"seat\":\""+change.seat+"\", \"state\":\""+change.state+"\"}");
+        }
+        if(items.isEmpty()) return null;
+        return "{\"seq\":"+frameSeq+",\"delta\":["+String.join(",", items)+"]}";
+    }
+
+    // The same as a seat-bin.v1 frame; null if nothing is left to send.
+    private static ByteBuffer binaryFrame(Collection<Change> changes, long frameSeq, Session except) {
+        ByteBuffer frame = SeatCodec.frame(SeatCodec.DELTA, frameSeq, changes.size());
+        int records = 0;
+        for(Change change : changes) {
+            if(except!=null && change.origin==except) continue;
+            if(SeatCodec.put(frame, change.seat, change.state)) records++;
+        }
+        frame.flip();
+        return records>0 ? frame : null;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Sends {@code peer} every pending seat in a single frame.
+     */
+    public void sendSnapshot(WsPeer peer) {
+        sendSnapshot(peer, false);
+    }
+
+    /**
+     * Sends {@code peer} every pending seat in a single frame.  With
+     * {@code refetch} the frame also tells the client that reserved seats
+     * may have changed without it seeing a delta, so the snapshot alone
+     * leaves its map partly stale.
+     */
+    public void sendSnapshot(WsPeer peer, boolean refetch) {
+        // Under sendLock so no newer delta can get into the peer's queue
+        // ahead of it.
+        synchronized (sendLock) {
+            boolean ok;
+            if(peer.isBinary()) {
+                ByteBuffer frame = snapshotBinary();
+                if(refetch) {
+                    ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+                    copy.put(frame.duplicate()).flip();
+                    copy.put(1, SeatCodec.REFETCH);
+                    frame = copy;
+                }
+                ok = peer.send(frame);
+            } else {
+                String frame = snapshotText();
+                if(refetch) frame = frame.substring(0, frame.length()-1)+",\"refetch\":true}";
+                ok = peer.send(frame);
+            }
+            if(ok) {
+                synchronized (this) {
+                    snapshotsSent++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Answers a reconnecting {@code peer} that last saw delta
+     * {@code since}.  If the ring still holds everything after it, that
+     * goes out as one delta and the client is up to date.  Otherwise it
+     * only gets the pending-seat snapshot, a partial state: seats booked
+     * or freed in the meantime are missing, so the frame is flagged for
+     * the client to fetch the reserved seats again.  A negative
+     * {@code since} always takes the snapshot route.
+     */
+    public void resume(WsPeer peer, long since) {
+        synchronized (sendLock) {
+            Map<String,String> missed = null;
+            long at;
+            synchronized (this) {
+                resumes++;
+                at = seq;
+                if(since>=0 && since<=seq && since>=seq-ring.length) {
+                    missed = new LinkedHashMap<String,String>();
+                    for(long s=since+1; s<=seq; s++) {
+                        for(Map.Entry<String,String> e : ring[(int) (s % ring.length)].entrySet()) {
+                            missed.remove(e.getKey());
+                            missed.put(e.getKey(), e.getValue());
+                        }
+                    }
+                    changesReplayed += missed.size();
+                }
+                else resumeSnapshots++;
+            }
+            if(missed==null) {
+                sendSnapshot(peer, true);
+                return;
+            }
+            if(missed.isEmpty()) return;
+            List<Change> changes = new ArrayList<Change>(missed.size());
+            for(Map.Entry<String,String> e : missed.entrySet())
+                changes.add(new Change(e.getKey(), e.getValue(), null, 0));
+            if(peer.isBinary()) {
+                ByteBuffer frame = binaryFrame(changes, at, null);
+                if(frame!=null) peer.send(frame);
+            }
+            else peer.send(frame(changes, at, null));
+        }
+    }
+
+    public synchronized String snapshotText() {
+        if(snapshotText==null) {
+            StringBuilder frame = new StringBuilder("{\"seq\":").append(seq).append(",\"snapshot\":[");
+            boolean first = true;
+            for(String seat : pending) {
+                if(!first) frame.append(',');
+                frame.append('"').append(seat).append('"');
+                first = false;
+            }
+            snapshotText = frame.append("]}").toString();
+            snapshotsBuilt++;
+        }
+        return snapshotText;
+    }
+
+    public synchronized ByteBuffer snapshotBinary() {
+        if(snapshotBinary==null) {
+            ByteBuffer frame = SeatCodec.frame(SeatCodec.SNAPSHOT, seq, pending.size());
+            for(String seat : pending) SeatCodec.put(frame, seat, "pending");
+            frame.flip();
+            snapshotBinary = frame;
+            snapshotsBuilt++;
+        }
+        return snapshotBinary;
+    }
+
+    public synchronized Map<String,Long> getStats() {
+        Map<String,Long> stats = new LinkedHashMap<String,Long>();
+        stats.put("windowMs", windowMs);
+        stats.put("seq", seq);
+        stats.put("pendingSeats", (long) pending.size());
+        stats.put("changesPublished", published);
+        stats.put("changesCoalesced", coalesced);
+        stats.put("windows", windows);
+        stats.put("framesSent", framesSent);
+        stats.put("framesSaved", framesSaved);
+        stats.put("textBytesSent", textBytes);
+        stats.put("binaryBytesSent", binaryBytes);
+        stats.put("snapshotsSent", snapshotsSent);
+        stats.put("snapshotsBuilt", snapshotsBuilt);
+        stats.put("resumes", resumes);
+        stats.put("resumeSnapshots", resumeSnapshots);
+        stats.put("changesReplayed", changesReplayed);
+        stats.put("avgAddedLatencyMs", delayedChanges==0 ? 0 : delayTotalMs/delayedChanges);
+        stats.put("maxAddedLatencyMs", delayMaxMs);
+        return stats;
+    }
+
+}
@@ -0,0 +1,84 @@
+package nblc;
+
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+
+/**
+ * The {@code seat-bin.v1} websocket sub-protocol.  A binary frame is a run
+ * of four-byte records, one per seat: the table number as an unsigned
+ * 16-bit big-endian value, the seat number as an unsigned byte and a
+ * state byte (0 nonpending, 1 pending, 2 reserved).  Frames from the
+ * server start with an eight-byte header: a kind byte ({@link #DELTA},
+ * {@link #SNAPSHOT} or {@link #REPLY}), a flags byte ({@link #REFETCH}),
+ * two zero bytes and the sequence number as an unsigned 32-bit value.
+ * Control messages (hold token, ping, initSeats) stay text in both
+ * protocols.
+ */
+public final class SeatCodec {
+
+    public static final String PROTOCOL = "seat-bin.v1";
+    public static final int RECORD_BYTES = 4;
+    public static final int HEADER_BYTES = 8;
+
+    public static final byte DELTA = 0;
+    public static final byte SNAPSHOT = 1;
+    // An answer to this client alone; not part of the sequence.
+    public static final byte REPLY = 2;
+
+    // Flag on a snapshot: reserved seats may have changed unseen, so the
+    // client should fetch them again.
+    public static final byte REFETCH = 1;
+
+    private static final String[] STATES = { "nonpending", "pending", "reserved" };
+
+    private SeatCodec() { }
+
+    public static int stateCode(String state) {
+        for(int i=0; i<STATES.length; i++) {
+            if(STATES[i].equals(state)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * A buffer for a server frame of up to {@code records} records, with
+     * the header already written.
+     */
+    public static ByteBuffer frame(byte kind, long seq, int records) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES+records*RECORD_BYTES);
+        buf.put(kind).put((byte) 0).putShort((short) 0);
+        buf.putInt((int) seq);
+        return buf;
+    }
+
+    /**
+     * Appends one record to {@code buf}.  Returns false, writing nothing,
+     * for seat ids or states the protocol cannot express.
+     */
+    public static boolean put(ByteBuffer buf, String seat, String state) {
+        int code = stateCode(state);
+        int[] ts = SeatOccupancy.parseSeatId(seat);
+        if(code<0 || ts==null || ts[0]>0xFFFF || ts[1]>0xFF) return false;
+        buf.putShort((short) ts[0]);
+        buf.put((byte) ts[1]);
+        buf.put((byte) code);
+        return true;
+    }
+
+    /**
+     * Hands every well-formed record in the frame to {@code handler} as a
+     * seat id and state; trailing bytes and unknown states are skipped.
+     */
+    public static void forEach(byte[] payload, int offset, int length,
+                               BiConsumer<String,String> handler) {
+        int end = offset+length-length%RECORD_BYTES;
+        for(int i=offset; i<end; i+=RECORD_BYTES) {
+            int table = ((payload[i]&0xFF)<<8)|(payload[i+1]&0xFF);
+            int seat = payload[i+2]&0xFF;
+            int code = payload[i+3]&0xFF;
+            if(code>=STATES.length) continue;
+            handler.accept(SeatOccupancy.seatId(table, seat), STATES[code]);
+        }
+    }
+
+}
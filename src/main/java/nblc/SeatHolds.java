@@ -0,0 +1,244 @@
+package nblc;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-side leases on pending seats.  A seat picked in the browser is held
+ * for its owner (one websocket connection) until the owner releases it,
+ * books it, disconnects, or stops renewing the lease.  Expiry is driven by
+ * a hashed timer wheel: each hold is filed under the tick it expires in and
+ * only that bucket is examined when the tick comes round.
+ */
+public class SeatHolds {
+
+    private static Logger logger = LogManager.getLogger(App.class);
+
+    public interface ReleaseListener {
+        void onHoldReleased(String seatId);
+    }
+
+    private static class Hold {
+        final String owner;
+        final long expiresAt;
+        Hold(String owner, long expiresAt) {
+            this.owner = owner;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static SeatHolds single_instance = null;
+
+    private final long ttlMs;
+    private final long tickMs;
+    private final ConcurrentHashMap<String,Hold> holds =
+            new ConcurrentHashMap<String,Hold>();
+    private final Set<String>[] wheel;
+    private long lastTick;
+    private final List<ReleaseListener> listeners =
+            new CopyOnWriteArrayList<ReleaseListener>();
+    private ScheduledExecutorService expirer = null;
+
+    private final AtomicLong granted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public SeatHolds(long ttlMs, long tickMs) {
+        this.ttlMs = ttlMs;
+        this.tickMs = tickMs;
+        int slots = (int) Math.max(16, ttlMs/tickMs + 2);
+        wheel = new Set[slots];
+        for(int i=0; i<slots; i++) wheel[i] = ConcurrentHashMap.newKeySet();
+        lastTick = System.currentTimeMillis()/tickMs - 1;
+    }
+
+    public static synchronized SeatHolds getInstance() {
+        if (single_instance == null) {
+            EnvironmentProperties env = new DefaultEnvironmentProperties();
+            single_instance = new SeatHolds(
+                    envLong(env, "seat.hold.ttl.ms", 75000),
+                    envLong(env, "seat.hold.tick.ms", 1000));
+            single_instance.start();
+        }
+        return single_instance;
+    }
+
+    private static long envLong(EnvironmentProperties env, String key, long defaultValue) {
+        String value = env.getEnvironmentProperties(key);
+        if(value==null || value.trim().isEmpty()) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public void start() {
+        expirer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "seat-hold-expirer");
+            t.setDaemon(true);
+            return t;
+        });
+        expirer.scheduleAtFixedRate(() -> {
+            try {
+                advance(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                logger.error("Seat hold expiry failed", e);
+            }
+        }, tickMs, tickMs, TimeUnit.MILLISECONDS);
+        logger.info("Seat holds expire after "+ttlMs+" ms");
+    }
+
+    public void stop() {
+        if(expirer!=null) expirer.shutdownNow();
+    }
+
+    public void addListener(ReleaseListener listener) { listeners.add(listener); }
+
+    private int slotFor(long expiresAt) {
+        return (int) ((expiresAt/tickMs) % wheel.length);
+    }
+
+    /**
+     * Takes or renews the lease on a seat.  Returns false if another owner
+     * holds a live lease on it.
+     */
+    public boolean hold(String seatId, String owner) {
+        long now = System.currentTimeMillis();
+        Hold lease = new Hold(owner, now + ttlMs);
+        Hold current = holds.compute(seatId, (k, h) ->
+                (h==null || h.owner.equals(owner) || h.expiresAt<=now) ? lease : h);
+        if(current!=lease) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        wheel[slotFor(lease.expiresAt)].add(seatId);
+        granted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Extends every lease the owner holds, e.g. when its user picks another
+     * seat or is still active on the booking form.
+     */
+    public void renew(String owner) {
+        for(String seatId : getSeats(owner)) hold(seatId, owner);
+    }
+
+    public boolean release(String seatId, String owner) {
+        Hold h = holds.get(seatId);
+        return h!=null && h.owner.equals(owner) && holds.remove(seatId, h);
+    }
+
+    /**
+     * Drops holds regardless of owner, used once the seats are booked.
+     */
+    public void releaseSeats(Collection<String> seatIds) {
+        for(String seatId : seatIds) holds.remove(seatId);
+    }
+
+    public List<String> releaseAll(String owner) {
+        List<String> released = new ArrayList<String>();
+        for(String seatId : getSeats(owner)) {
+            if(release(seatId, owner)) released.add(seatId);
+        }
+        for(String seatId : released) fireReleased(seatId);
+        return released;
+    }
+
+    public List<String> getSeats(String owner) {
+        List<String> seats = new ArrayList<String>();
+        for(Map.Entry<String,Hold> e : holds.entrySet()) {
+            if(e.getValue().owner.equals(owner)) seats.add(e.getKey());
+        }
+        return seats;
+    }
+
+    /**
+     * Seats from the list that are under a live lease by someone other than
+     * {@code owner}.
+     */
+    public List<String> heldByOthers(Collection<String> seatIds, String owner) {
+        long now = System.currentTimeMillis();
+        List<String> held = new ArrayList<String>();
+        for(String seatId : seatIds) {
+            Hold h = holds.get(seatId);
+            if(h!=null && h.expiresAt>now && !h.owner.equals(owner)) held.add(seatId);
+        }
+        return held;
+    }
+
+    public List<String> getPendingSeats() {
+        return new ArrayList<String>(holds.keySet());
+    }
+
+    /**
+     * Expires every lease whose tick has passed.  Called by the expirer
+     * thread; public so tests can drive the wheel with their own clock.
+     */
+    public synchronized void advance(long now) {
+        // Only ticks that have fully elapsed are examined, so every lease
+        // filed under them has expired by now.
+        long doneTick = now/tickMs - 1;
+        // After a stall, don't walk more than one full turn of the wheel.
+        long firstTick = Math.max(lastTick + 1, doneTick - wheel.length + 1);
+        for(long tick=firstTick; tick<=doneTick; tick++) {
+            int slot = (int) (tick % wheel.length);
+            Iterator<String> it = wheel[slot].iterator();
+            while(it.hasNext()) {
+                String seatId = it.next();
+                Hold h = holds.get(seatId);
+                if(h==null) {
+                    it.remove();
+                } else if(h.expiresAt<=now) {
+                    it.remove();
+                    if(holds.remove(seatId, h)) {
+                        expired.incrementAndGet();
+                        logger.debug("Hold on "+seatId+" by "+h.owner+" expired");
+                        fireReleased(seatId);
+                    }
+                } else if(slotFor(h.expiresAt)!=slot) {
+                    // Renewed since; the lease is filed under a later slot.
+                    it.remove();
+                }
+            }
+        }
+        lastTick = Math.max(lastTick, doneTick);
+    }
+
+    private void fireReleased(String seatId) {
+        for(ReleaseListener l : listeners) {
+            try {
+                l.onHoldReleased(seatId);
+            } catch (RuntimeException e) {
+                logger.error("Seat hold listener failed", e);
+            }
+        }
+    }
+
+    public Map<String,Long> getStats() {
+        Map<String,Long> stats = new LinkedHashMap<String,Long>();
+        stats.put("held", (long) holds.size());
+        stats.put("granted", granted.get());
+        stats.put("rejected", rejected.get());
+        stats.put("expired", expired.get());
+        stats.put("ttlMs", ttlMs);
+        return stats;
+    }
+
+}
@@ -0,0 +1,176 @@
+package nblc;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory index of which seats are taken, kept as one bitset per table.
+ * It is loaded from the database at startup and updated write-through by
+ * the data layer, so seat checks and free counts never touch Derby.
+ * Seat ids that do not map onto a known table (e.g. the "S99-99" rows the
+ * table bootstrap inserts) are tracked separately so the index stays exact.
+ * Seats claimed by {@link #tryReserve} count as taken at once but are only
+ * listed as reserved once the booking is {@link #commit committed}.
+ */
+public class SeatOccupancy {
+
+    private static final Pattern SEAT_PATTERN =
+            Pattern.compile("^S(?<table>[0-9]+)-(?<seat>[0-9]+)$");
+
+    private final Table[] tablesByNum;
+    private final BitSet[] taken;
+    private final Set<String> unmapped = new HashSet<String>();
+    private final Set<String> claimed = new HashSet<String>();
+    private int takenCount = 0;
+
+    public SeatOccupancy(List<Table> tables) {
+        int maxNum = 0;
+        for(Table t : tables) maxNum = Math.max(maxNum, t.num);
+        tablesByNum = new Table[maxNum+1];
+        taken = new BitSet[maxNum+1];
+        for(Table t : tables) {
+            tablesByNum[t.num] = t;
+            taken[t.num] = new BitSet(t.seats.length+1);
+        }
+    }
+
+    public static String seatId(int table, int seat) {
+        return "S" + table + "-" + seat;
+    }
+
+    /**
+     * Splits a seat id such as "S14-11" into {14, 11}; null if malformed.
+     */
+    public static int[] parseSeatId(String seatId) {
+        Matcher matcher = SEAT_PATTERN.matcher(seatId);
+        if(!matcher.find()) return null;
+        return new int[] {
+                Integer.parseInt(matcher.group("table")),
+                Integer.parseInt(matcher.group("seat"))
+        };
+    }
+
+    private BitSet bitsFor(int[] ts) {
+        if(ts==null || ts[0]<=0 || ts[0]>=taken.length) return null;
+        BitSet bits = taken[ts[0]];
+        if(bits==null || ts[1]<=0 || ts[1]>tablesByNum[ts[0]].seats.length)
+            return null;
+        return bits;
+    }
+
+    public synchronized boolean isTaken(String seatId) {
+        int[] ts = parseSeatId(seatId);
+        BitSet bits = bitsFor(ts);
+        if(bits==null) return unmapped.contains(seatId);
+        return bits.get(ts[1]);
+    }
+
+    public synchronized boolean isTaken(int table, int seat) {
+        BitSet bits = bitsFor(new int[] {table, seat});
+        if(bits==null) return unmapped.contains(seatId(table, seat));
+        return bits.get(seat);
+    }
+
+    /**
+     * Claims every seat in the list, or none of them.  Returns the seats that
+     * were already taken; an empty list means the claim succeeded.
+     */
+    public synchronized List<String> tryReserve(Collection<String> seatIds) {
+        List<String> conflicts = new ArrayList<String>();
+        Set<String> requested = new HashSet<String>();
+        for(String seatId : seatIds) {
+            if(isTaken(seatId) || !requested.add(seatId)) conflicts.add(seatId);
+        }
+        if(conflicts.isEmpty()) {
+            for(String seatId : seatIds) mark(seatId, true);
+            claimed.addAll(seatIds);
+        }
+        return conflicts;
+    }
+
+    /**
+     * Marks claimed seats as booked for good, once their insert commits.
+     */
+    public synchronized void commit(Collection<String> seatIds) {
+        claimed.removeAll(seatIds);
+    }
+
+    public synchronized void reserve(Collection<String> seatIds) {
+        for(String seatId : seatIds) mark(seatId, true);
+        claimed.removeAll(seatIds);
+    }
+
+    public synchronized void release(Collection<String> seatIds) {
+        for(String seatId : seatIds) mark(seatId, false);
+        claimed.removeAll(seatIds);
+    }
+
+    public synchronized void clear() {
+        for(BitSet bits : taken) if(bits!=null) bits.clear();
+        unmapped.clear();
+        claimed.clear();
+        takenCount = 0;
+    }
+
+    private void mark(String seatId, boolean isTaken) {
+        int[] ts = parseSeatId(seatId);
+        BitSet bits = bitsFor(ts);
+        boolean wasTaken;
+        if(bits==null) {
+            wasTaken = isTaken ? !unmapped.add(seatId) : unmapped.remove(seatId);
+        } else {
+            wasTaken = bits.get(ts[1]);
+            bits.set(ts[1], isTaken);
+        }
+        if(isTaken && !wasTaken) takenCount++;
+        else if(!isTaken && wasTaken) takenCount--;
+    }
+
+    public synchronized int seatsLeft(int table) {
+        if(table<=0 || table>=taken.length || taken[table]==null) return 0;
+        return tablesByNum[table].seats.length - taken[table].cardinality();
+    }
+
+    public synchronized int seatsLeft() {
+        int left = 0;
+        for(int t=1; t<taken.length; t++) if(taken[t]!=null) left+=seatsLeft(t);
+        return left;
+    }
+
+    public synchronized int seatsTaken() { return takenCount; }
+
+    /**
+     * Booked seats on known tables, as the seat map shows them: claims not
+     * yet committed and unmapped ids are left out.
+     */
+    public synchronized List<String> getReservedSeatIds() {
+        List<String> seats = new ArrayList<String>(takenCount);
+        for(int t=1; t<taken.length; t++) {
+            BitSet bits = taken[t];
+            if(bits==null) continue;
+            for(int s=bits.nextSetBit(0); s>=0; s=bits.nextSetBit(s+1)) {
+                String seatId = seatId(t, s);
+                if(!claimed.contains(seatId)) seats.add(seatId);
+            }
+        }
+        return seats;
+    }
+
+    public synchronized Map<String,Long> getStats() {
+        Map<String,Long> stats = new LinkedHashMap<String,Long>();
+        stats.put("seatsTaken", (long) takenCount);
+        stats.put("seatsLeft", (long) seatsLeft());
+        stats.put("unmappedSeats", (long) unmapped.size());
+        stats.put("claimedSeats", (long) claimed.size());
+        return stats;
+    }
+
+}
@@ -1,5 +1,4 @@
 package nblc;
-import java.util.List;
 
 public class Table {
 	public int num;
@@ -20,15 +19,7 @@ public class Table {
 		for(int i=0; i<seats.length; i++) seats[i]=new Seat(i+1);
 	}
 
-	public int seatsLeft(List<ReservedSeat> reserved) {
-		int empty=0;
-		for(int i=0; i<seats.length; i++) {
-			boolean foundSeat = false;
-			for (ReservedSeat s : reserved) {
-				if(s.seat==seats[i]) foundSeat=true;
-			}
-			if(!foundSeat) empty++;
-		}
-		return empty;
+	public int seatsLeft(SeatOccupancy occupancy) {
+		return occupancy.seatsLeft(num);
 	}
 }
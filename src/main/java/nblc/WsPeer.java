@@ -0,0 +1,170 @@
+package nblc;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketException;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * One websocket connection with its own outbound queue.  Messages are
+ * sent one at a time with Jetty's async send; the next one goes out from
+ * the completion callback, so no Jetty thread ever blocks on a peer.  A
+ * peer whose queue fills up, or whose current send has not completed
+ * within the stall limit, is too slow to keep up and is dropped.  Peers
+ * that negotiated {@link SeatCodec#PROTOCOL} also get binary frames.
+ */
+public class WsPeer {
+
+    private final Session session;
+    private final String holdOwner;
+    private final boolean binary;
+    private final int maxQueued;
+    private final long stallMs;
+    // Strings go out as text frames, ByteBuffers as binary ones.
+    private final Deque<Object> queue = new ArrayDeque<Object>();
+    private boolean sending = false;
+    private long sendingSince = 0;
+    private boolean dropped = false;
+    private long sent = 0;
+    // Last time anything, a pong included, came in from the client.
+    private volatile long lastSeen = System.currentTimeMillis();
+
+    private final WriteCallback callback = new WriteCallback() {
+        @Override
+        public void writeSuccess() {
+            Object next;
+            synchronized (WsPeer.this) {
+                sent++;
+                next = queue.poll();
+                if(next==null) sending = false;
+                else sendingSince = System.currentTimeMillis();
+            }
+            if(next!=null) write(next);
+        }
+
+        @Override
+        public void writeFailed(Throwable x) {
+            WsSingleton.getInstance().drop(WsPeer.this, "send failed: "+x.getMessage());
+        }
+    };
+
+    public WsPeer(Session session, String holdOwner, int maxQueued, long stallMs) {
+        this(session, holdOwner, false, maxQueued, stallMs);
+    }
+
+    public WsPeer(Session session, String holdOwner, boolean binary, int maxQueued, long stallMs) {
+        this.session = session;
+        this.holdOwner = holdOwner;
+        this.binary = binary;
+        this.maxQueued = maxQueued;
+        this.stallMs = stallMs;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public String getHoldOwner() {
+        return holdOwner;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Queues {@code message} without waiting for the network.  Returns
+     * false if the peer is gone or has just been dropped as too slow.
+     */
+    public boolean send(String message) {
+        return enqueue(message);
+    }
+
+    /**
+     * Queues a binary frame.  {@code frame} may be shared between peers;
+     * each gets its own view of it.
+     */
+    public boolean send(ByteBuffer frame) {
+        return enqueue(frame.duplicate());
+    }
+
+    private boolean enqueue(Object message) {
+        Object first = null;
+        boolean tooSlow = false;
+        synchronized (this) {
+            if(dropped) return false;
+            long now = System.currentTimeMillis();
+            if(queue.size()>=maxQueued || (sending && now-sendingSince>stallMs)) {
+                tooSlow = true;
+            } else if(sending) {
+                queue.add(message);
+            } else {
+                sending = true;
+                sendingSince = now;
+                first = message;
+            }
+        }
+        if(tooSlow) {
+            WsSingleton.getInstance().drop(this, "too slow, "+queued()+" message(s) waiting");
+            return false;
+        }
+        if(first!=null) write(first);
+        return true;
+    }
+
+    private void write(Object message) {
+        try {
+            if(message instanceof ByteBuffer)
+                session.getRemote().sendBytes((ByteBuffer) message, callback);
+            else
+                session.getRemote().sendString((String) message, callback);
+        } catch (WebSocketException e) {
+            WsSingleton.getInstance().drop(this, "send failed: "+e.getMessage());
+        }
+    }
+
+    public void touch() {
+        lastSeen = System.currentTimeMillis();
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Sends a websocket ping frame; the browser answers it with a pong on
+     * its own.  Control frames do not wait behind the message queue.
+     */
+    boolean ping() {
+        try {
+            session.getRemote().sendPing(ByteBuffer.allocate(0));
+            return true;
+        } catch (IOException | WebSocketException e) {
+            WsSingleton.getInstance().drop(this, "ping failed: "+e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Stops sending; returns false if the peer had already been dropped.
+     */
+    synchronized boolean markDropped() {
+        if(dropped) return false;
+        dropped = true;
+        queue.clear();
+        return true;
+    }
+
+    public synchronized int queued() {
+        return queue.size();
+    }
+
+    public synchronized long sent() {
+        return sent;
+    }
+
+}
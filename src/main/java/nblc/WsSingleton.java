@@ -1,20 +1,45 @@
 package nblc;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class WsSingleton {
+
+    private static Logger logger = LogManager.getLogger(App.class);
+
     // Static variable reference of single_instance
     // of type Singleton
     private static WsSingleton single_instance = null;
 
     // Declaring a variable of type String
     public String s;
-    public List<Session> sessionList = new ArrayList<Session>();
-    public HashMap<Session,List<String>> sessionDict = new HashMap<Session,List<String>>();
+    // Every open connection with its outbound queue; pending seats live in
+    // SeatHolds, keyed by the hold owner of each peer.
+    private final Map<Session,WsPeer> peers = new ConcurrentHashMap<Session,WsPeer>();
+    private final int maxQueued;
+    private final long stallMs;
+    private final AtomicLong dropped = new AtomicLong();
+    // Every ws.heartbeat.ms the server pings each client; one that has
+    // sent nothing, pongs included, for ws.idle.timeout.ms is closed.
+    private final long heartbeatMs;
+    private final long idleTimeoutMs;
+    private ScheduledExecutorService heartbeat = null;
+    private final AtomicLong pingsSent = new AtomicLong();
+    private final AtomicLong pongsReceived = new AtomicLong();
+    private final AtomicLong idleClosed = new AtomicLong();
+    private final AtomicLong controlMessages = new AtomicLong();
+    private final AtomicLong controlFramesAvoided = new AtomicLong();
 
     // Constructor
     // Here we will be creating private constructor
@@ -22,6 +47,11 @@ public class WsSingleton {
     private WsSingleton()
     {
         s = "Hello I am a string part of Singleton class";
+        EnvironmentProperties env = new DefaultEnvironmentProperties();
+        maxQueued = (int) envLong(env, "ws.send.queue", 256);
+        stallMs = envLong(env, "ws.send.stall.ms", 10000);
+        heartbeatMs = envLong(env, "ws.heartbeat.ms", 25000);
+        idleTimeoutMs = envLong(env, "ws.idle.timeout.ms", 75000);
     }
 
     // Static method
@@ -33,4 +63,116 @@ public class WsSingleton {
 
         return single_instance;
     }
+
+    private static long envLong(EnvironmentProperties env, String key, long defaultValue) {
+        String value = env.getEnvironmentProperties(key);
+        if(value==null || value.trim().isEmpty()) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public long getIdleTimeoutMs() {
+        return idleTimeoutMs;
+    }
+
+    public synchronized void startHeartbeat() {
+        if(heartbeat!=null || heartbeatMs<=0) return;
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ws-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeat.scheduleWithFixedDelay(this::heartbeat,
+                heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+    }
+
+    void heartbeat() {
+        long now = System.currentTimeMillis();
+        for(WsPeer peer : peers.values()) {
+            if(idleTimeoutMs>0 && now-peer.getLastSeen()>idleTimeoutMs) {
+                idleClosed.incrementAndGet();
+                drop(peer, "idle for "+(now-peer.getLastSeen())+" ms", "Idle");
+            }
+            else if(peer.ping()) pingsSent.incrementAndGet();
+        }
+    }
+
+    public void pongReceived(WsPeer peer) {
+        peer.touch();
+        pongsReceived.incrementAndGet();
+    }
+
+    /**
+     * Counts a control message (ping, initSeats) handled for one client
+     * alone, and the frames relaying it to everyone else used to cost.
+     */
+    public void controlHandled() {
+        controlMessages.incrementAndGet();
+        controlFramesAvoided.addAndGet(Math.max(0, peers.size()-1));
+    }
+
+    public WsPeer register(Session session, String holdOwner) {
+        return register(session, holdOwner, false);
+    }
+
+    public WsPeer register(Session session, String holdOwner, boolean binary) {
+        WsPeer peer = new WsPeer(session, holdOwner, binary, maxQueued, stallMs);
+        peers.put(session, peer);
+        return peer;
+    }
+
+    public WsPeer unregister(Session session) {
+        return peers.remove(session);
+    }
+
+    Collection<WsPeer> peers() {
+        return peers.values();
+    }
+
+    public int sessionCount() {
+        return peers.size();
+    }
+
+    /**
+     * Forgets a peer that cannot keep up or has gone quiet, closes its
+     * connection and gives its held seats back to everyone else.
+     */
+    void drop(WsPeer peer, String reason) {
+        drop(peer, reason, "Too slow");
+    }
+
+    void drop(WsPeer peer, String reason, String closeReason) {
+        if(!peer.markDropped()) return;
+        peers.remove(peer.getSession(), peer);
+        dropped.incrementAndGet();
+        logger.warn("Dropping websocket "+peer.getSession().getRemoteAddress()+": "+reason);
+        try {
+            peer.getSession().close(StatusCode.POLICY_VIOLATION, closeReason);
+        } catch (RuntimeException e) { }
+        if(peer.getHoldOwner()!=null) SeatHolds.getInstance().releaseAll(peer.getHoldOwner());
+    }
+
+    public Map<String,Long> getStats() {
+        long queued = 0, sent = 0, binary = 0;
+        for(WsPeer peer : peers.values()) {
+            if(peer.isBinary()) binary++;
+            queued += peer.queued();
+            sent += peer.sent();
+        }
+        Map<String,Long> stats = new LinkedHashMap<String,Long>();
+        stats.put("sessions", (long) peers.size());
+        stats.put("binarySessions", binary);
+        stats.put("queued", queued);
+        stats.put("sentByOpenSessions", sent);
+        stats.put("dropped", dropped.get());
+        stats.put("pingsSent", pingsSent.get());
+        stats.put("pongsReceived", pongsReceived.get());
+        stats.put("idleClosed", idleClosed.get());
+        stats.put("controlMessages", controlMessages.get());
+        stats.put("controlFramesAvoided", controlFramesAvoided.get());
+        return stats;
+    }
 }
@@ -1,10 +1,17 @@
 package nblc.rest;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.MediaType;
 
 import javax.inject.Inject;
 import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Request;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
@@ -16,10 +23,18 @@ import org.glassfish.hk2.api.Immediate;
 import org.javatuples.Pair;
 
 import java.io.*;
-import java.security.GeneralSecurityException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -27,6 +42,7 @@ import java.util.regex.Pattern;
 
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.time.format.DateTimeFormatter;
 import java.time.LocalDateTime;
 
@@ -40,27 +56,88 @@ public class MyMessage {
     @Produces(MediaType.TEXT_PLAIN)
     public String getMessage() { return "My message\n"; }
 
+    public static final int RESERVATION_PAGE_DEFAULT = 100;
+    public static final int RESERVATION_PAGE_MAX = 500;
+
+    /**
+     * Without parameters this is the full listing.  With any of {@code limit},
+     * {@code after} or {@code prefix} it returns one page in id order; when
+     * the page is full the X-Next-Cursor header carries the {@code after}
+     * value for the next one.
+     */
     @Path("reservation") @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public List<Reservation> getReservation() {
-        List<Reservation> retList = da.getReservations();
-        for (int i=0; i<retList.size(); i++) {
-            retList.set(i, retList.get(i).clone(da.getReservedSeatIds(retList.get(i))));
+    public Response getReservation(
+            @QueryParam("limit") Integer limit,
+            @QueryParam("after") String after,
+            @QueryParam("prefix") String prefix,
+            @Context Request request
+    ) {
+        // Read the version before the data so the tag never claims more
+        // than the body holds.
+        EntityTag tag = new EntityTag("r"+da.getVersion());
+        ResponseBuilder builder = request.evaluatePreconditions(tag);
+        if(builder!=null) return builder.tag(tag).cacheControl(revalidate()).build();
+
+        if(limit==null && after==null && prefix==null) {
+            return Response.ok(new GenericEntity<List<Reservation>>(
+                    da.getReservationsWithSeatIds()) {})
+                    .tag(tag).cacheControl(revalidate()).build();
+        }
+        int pageSize = limit==null ? RESERVATION_PAGE_DEFAULT :
+                Math.max(1, Math.min(limit, RESERVATION_PAGE_MAX));
+        long afterId = Long.MIN_VALUE;
+        if(after!=null && !after.isEmpty()) {
+            try {
+                afterId = Long.parseLong(after);
+            } catch (NumberFormatException e) {
+                return Response.status(Response.Status.BAD_REQUEST).build();
+            }
         }
-        return retList;
+        if(prefix!=null && prefix.isEmpty()) prefix = null;
+        List<Reservation> page = da.getReservationsPage(afterId, pageSize, prefix);
+        builder = Response.ok(new GenericEntity<List<Reservation>>(page) {});
+        if(page.size()==pageSize)
+            builder.header("X-Next-Cursor", page.get(page.size()-1).resIdString);
+        return builder.tag(tag).cacheControl(revalidate()).build();
     }
 
     @Path("reservedSeats") @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public List<String> getReservedSeats() {
-        List<String> seats = new ArrayList<String>();
-        List<Reservation> reservationList = da.getReservations();
-        for (int i=0; i<reservationList.size(); i++) {
-            for(String seat : da.getReservedSeatIds(reservationList.get(i))) {
-                seats.add(seat);
-            }
-        }
-        return seats;
+    public Response getReservedSeats(@Context Request request) {
+        EntityTag tag = new EntityTag("s"+da.getVersion());
+        ResponseBuilder builder = request.evaluatePreconditions(tag);
+        if(builder==null) builder = Response.ok(new GenericEntity<List<String>>(
+                da.getSeatOccupancy().getReservedSeatIds()) {});
+        return builder.tag(tag).cacheControl(revalidate()).build();
+    }
+
+    /**
+     * Polled listings may be cached but must be revalidated every time;
+     * an unchanged version then costs a 304 and no body.
+     */
+    private static CacheControl revalidate() {
+        CacheControl cc = new CacheControl();
+        cc.setNoCache(true);
+        return cc;
+    }
+
+    @Path("stats") @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String,Map<String,Long>> getStats() {
+        Map<String,Map<String,Long>> stats =
+                new LinkedHashMap<String,Map<String,Long>>(da.getStats());
+        stats.put("startup", Readiness.getInstance().getStats());
+        stats.put("seatHolds", SeatHolds.getInstance().getStats());
+        stats.put("websocket", WsSingleton.getInstance().getStats());
+        stats.put("seatBroadcast", SeatBroadcaster.getInstance().getStats());
+        stats.put("driveUploads", DriveUploadQueue.getInstance().getStats());
+        Map<String,Long> booking = new LinkedHashMap<String,Long>();
+        booking.put("queued", (long) bookingExecutor.getQueue().size());
+        booking.put("active", (long) bookingExecutor.getActiveCount());
+        booking.put("completed", bookingExecutor.getCompletedTaskCount());
+        stats.put("booking", booking);
+        return stats;
     }
 
     @Path("deleteReservation") @GET
@@ -69,9 +146,12 @@ public class MyMessage {
         Logger.getLogger(MyMessage.class.getName()).log(Level.INFO,
                 "I will delete "+resId);
         da.deleteReservation(resId);
-        try {
-            DriveQuickstart.DeleteDb(resId+".json");
-        } catch (GeneralSecurityException | IOException e) { }
+        // Bookings made before the journal each have their own file.
+        if("1".equals(UPLOADDB)) {
+            try {
+                DriveUploadQueue.getInstance().delete(resId+".json");
+            } catch (IOException e) { }
+        }
         return;
     }
 
@@ -118,35 +198,46 @@ public class MyMessage {
         return -1;
     }
 
+    // Export label ("T01-S01") for every seat id ("S1-1"); must follow tables.
+    private static final Map<String,String> seatLabels = buildSeatLabels();
+
+    private static Map<String,String> buildSeatLabels() {
+        Map<String,String> labels = new HashMap<String,String>();
+        for(Table t : tables) {
+            for(Seat s : t.seats) {
+                labels.put(SeatOccupancy.seatId(t.num, s.number),
+                        "T"+String.format("%02d",t.num)+"-S"+String.format("%02d",s.number));
+            }
+        }
+        return labels;
+    }
+
     @GET
     @Path("attendees")
     @Produces(MediaType.APPLICATION_OCTET_STREAM)
     public Response getAttendees() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            DateTimeFormatter dtf = DateTimeFormatter.ofPattern("uuuuMMddHHmmss");
-            LocalDateTime localTime = LocalDateTime.now();
-            String filename = "attendees-"+dtf.format(localTime)+".csv";
-            List<Reservation> lr = da.getReservations();
-            String header = "\"Party\",\"Seat\",\"Person\"\n";
-            baos.write(header.getBytes());
-            for (Reservation r : lr) {
-                List<ReservedSeat> sl = da.getReservedSeats(r);
-                for (ReservedSeat s : sl) {
-                    String seat = "T"+String.format("%02d",
-                        MyMessage.getTable(s.seat))+"-S"+
-                        String.format("%02d",s.seat.number);
-                    String line = "\""+r.name+"\",\""+seat+"\",\""+s.person+"\"\n";
-		    baos.write(line.getBytes());
-                }
-            }
-            ResponseBuilder builder = Response.ok(baos.toByteArray());
-	    builder.header("Content-Disposition", "attachment; filename=" + filename);
-            return builder.build();
-        } catch (Exception ex) {
-            ex.printStackTrace();
-	    return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
-        }
+        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("uuuuMMddHHmmss");
+        LocalDateTime localTime = LocalDateTime.now();
+        String filename = "attendees-"+dtf.format(localTime)+".csv";
+        StreamingOutput stream = os -> {
+            Writer out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+            out.write("\"Party\",\"Seat\",\"Person\"\n");
+            da.forEachAttendee((partyName, seatId, person) -> {
+                String seat = seatLabels.get(seatId);
+                if(seat==null) return;
+                out.write('"');
+                out.write(String.valueOf(partyName));
+                out.write("\",\"");
+                out.write(seat);
+                out.write("\",\"");
+                out.write(String.valueOf(person));
+                out.write("\"\n");
+            });
+            out.flush();
+        };
+        ResponseBuilder builder = Response.ok(stream);
+        builder.header("Content-Disposition", "attachment; filename=" + filename);
+        return builder.build();
     }
 
     @POST
@@ -194,8 +285,60 @@ public class MyMessage {
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
     @Path("postReservation")
     public void postReservationMv(
-            MultivaluedMap<String,String> params
+            MultivaluedMap<String,String> params,
+            @Suspended AsyncResponse asyncResponse
     ) {
+        // The request thread is handed back at once; the booking runs on
+        // its own pool and the reply goes out as soon as it has committed.
+        // Whichever of the booking and the timeout claims the request first
+        // answers it: a booking still queued when the 503 goes out never
+        // runs, and one already running is waited for.
+        AtomicBoolean claimed = new AtomicBoolean(false);
+        asyncResponse.setTimeout(BOOKING_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        asyncResponse.setTimeoutHandler(ar -> {
+            if(claimed.compareAndSet(false, true))
+                ar.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE).build());
+            else ar.setTimeout(BOOKING_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        });
+        try {
+            bookingExecutor.execute(() -> {
+                if(!claimed.compareAndSet(false, true)) return;
+                try {
+                    asyncResponse.resume(bookReservation(params));
+                } catch (RuntimeException e) {
+                    asyncResponse.resume(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            claimed.set(true);
+            asyncResponse.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE).build());
+        }
+    }
+
+    private static final long BOOKING_TIMEOUT_SECONDS = 30;
+
+    // At most booking.queue (100) bookings wait; beyond that the form gets
+    // a 503 straight away.
+    private final ThreadPoolExecutor bookingExecutor = new ThreadPoolExecutor(
+            Math.max(1, envInt("booking.threads", 4)), Math.max(1, envInt("booking.threads", 4)),
+            0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(Math.max(1, envInt("booking.queue", 100))), r -> {
+                Thread t = new Thread(r, "booking");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private static int envInt(String key, int defaultValue) {
+        String value = new DefaultEnvironmentProperties().getEnvironmentProperties(key);
+        if(value==null || value.trim().isEmpty()) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private Response bookReservation(MultivaluedMap<String,String> params) {
         String partyName = params.get("partyName").get(0);
         int partyQty = Integer.parseInt(params.get("partyQty").get(0));
         Reservation newReservation = new Reservation(partyName,partyQty);
@@ -227,43 +370,47 @@ public class MyMessage {
                 }
             }
         }
-        long resId = da.createReservationTrans(newReservation,tableSeatPairs);
+        List<String> seatIds = new ArrayList<String>();
+        for(Pair<Integer,ReservedSeat> tsp : tableSeatPairs)
+            seatIds.add(SeatOccupancy.seatId(tsp.getValue0(),tsp.getValue1().seat.number));
+        // Seats held by somebody else's open seat picker cannot be booked.
+        // Without a hold token every live hold counts as someone else's.
+        String holdToken = params.getFirst("holdToken");
+        List<String> heldByOthers = SeatHolds.getInstance().heldByOthers(seatIds,
+                holdToken==null ? "" : holdToken);
+        BookingResult result = heldByOthers.isEmpty() ?
+                da.createReservationTrans(newReservation,tableSeatPairs) :
+                BookingResult.conflict(heldByOthers);
+        if(result.isBooked()) SeatHolds.getInstance().releaseSeats(seatIds);
+        // The form is submitted from the page itself, so the response stays
+        // 204 either way; the outcome is picked up via confirmationCode.
         if(params.get("guid")!=null) {
-            guidToPrikeyMap.put(params.get("guid").get(0),Long.toString(resId));
+            guidToPrikeyMap.put(params.get("guid").get(0),result);
 
         }
-        if(resId!=-1) {
-            try {
-                OutputStreamWriter writer = new OutputStreamWriter(
-                        new FileOutputStream("/tmp/"+resId+".json"),"UTF-8");
-                BufferedWriter bufWriter = new BufferedWriter(writer);
-                Gson gson = new Gson();
-                bufWriter.write(gson.toJson(newReservation));
-                bufWriter.write("\n");
-                bufWriter.write(gson.toJson(tableSeatPairs));
-                bufWriter.write("\n");
-                bufWriter.close();
-                writer.close();
-                DriveQuickstart.Upload("/tmp/"+resId+".json","venue");
-            }
-            catch (UnsupportedEncodingException e) { }
-            catch (FileNotFoundException e) { }
-            catch (IOException e) { }
-            catch (GeneralSecurityException e) { }
+        if(result.isConflict()) {
+            Logger.getLogger(MyMessage.class.getName()).log(Level.WARNING,
+                    "Reservation for "+partyName+" lost seats "+result.takenSeats);
         }
+        // The booking is already in the journal, which ships it to Drive.
+        return Response.noContent().build();
     }
 
-    public HashMap<String,String> guidToPrikeyMap = new HashMap<String,String>();
+    public Map<String,BookingResult> guidToPrikeyMap = new ConcurrentHashMap<String,BookingResult>();
 
     @Path("confirmationCode") @GET
     @Produces(MediaType.APPLICATION_JSON)
     public Response getConfirmationCode(@QueryParam("guid") String guid) {
         Gson gson = new Gson();
-        return Response.ok(
-                "{\"confirmationCode\":\""+guidToPrikeyMap.get(guid)+"\"}",
-                MediaType.APPLICATION_JSON).build();
+        BookingResult result = guid==null ? null : guidToPrikeyMap.get(guid);
+        JsonObject json = new JsonObject();
+        json.addProperty("confirmationCode",
+                result==null ? "null" : Long.toString(result.reservationId));
+        if(result!=null && result.isConflict())
+            json.add("takenSeats", gson.toJsonTree(result.takenSeats));
+        return Response.ok(gson.toJson(json), MediaType.APPLICATION_JSON).build();
     }
-    public HashMap<Long,String> confirmCodeList = new HashMap<Long,String>();
+    public Map<Long,String> confirmCodeList = new ConcurrentHashMap<Long,String>();
 
     @POST
     @Produces(MediaType.TEXT_HTML)
@@ -326,6 +473,8 @@ public class MyMessage {
             new DefaultEnvironmentProperties();
     private static final String ADMINPASSWD =
             env.getEnvironmentProperties("adminpasswd");
+    private static final String UPLOADDB =
+            env.getEnvironmentProperties("uploaddb");
 
     @Path("checkAdminPassword") @GET
     @Produces(MediaType.APPLICATION_JSON)
@@ -0,0 +1,55 @@
+package nblc.rest;
+
+import nblc.DefaultEnvironmentProperties;
+import nblc.Readiness;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+
+/**
+ * Turns REST calls away with 503 while the data layer is still starting,
+ * before any resource method can touch it; only {@code stats} is let
+ * through.  Retry-After is {@code startup.retry.after.s} seconds (5 by
+ * default).
+ */
+@Provider @PreMatching
+public class ReadinessFilter implements ContainerRequestFilter {
+
+    private static final String RETRY_AFTER = retryAfter();
+
+    private static String retryAfter() {
+        String value = new DefaultEnvironmentProperties()
+                .getEnvironmentProperties("startup.retry.after.s");
+        if(value==null || value.trim().isEmpty()) return "5";
+        try {
+            return Integer.toString(Math.max(1, Integer.parseInt(value.trim())));
+        } catch (NumberFormatException e) {
+            return "5";
+        }
+    }
+
+    @Override
+    public void filter(ContainerRequestContext request) throws IOException {
+        Readiness readiness = Readiness.getInstance();
+        // stats stays open so a slow start can be watched.
+        if(readiness.isReady() || "stats".equals(request.getUriInfo().getPath())) return;
+        if(readiness.getState()==Readiness.State.FAILED) {
+            request.abortWith(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .type(MediaType.TEXT_PLAIN)
+                    .entity("Reservations are unavailable\n")
+                    .build());
+            return;
+        }
+        request.abortWith(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", RETRY_AFTER)
+                .type(MediaType.TEXT_PLAIN)
+                .entity("Starting up ("+readiness.getStage()+")\n")
+                .build());
+    }
+
+}
@@ -6,6 +6,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -18,6 +19,8 @@ public class ReservedSeats implements DatabaseTable {
 
     private static Logger logger = LogManager.getLogger(App.class);
 
+    public static final String SEAT_CONSTRAINT = "RESERVED_SEATS_SEAT_UK";
+
     @Override public void setConnection(Connection conn) { this.conn = conn; }
     public ReservedSeats(Connection conn) { this.setConnection(conn); }
 
@@ -42,7 +45,8 @@ public class ReservedSeats implements DatabaseTable {
                     "Create table reserved_seats " +
                             "(reservationId bigint, seatId varchar(6), " +
                             " name varchar(256), mealEnum varchar(20), " +
-                            "primary key (reservationId, seatId))");
+                            "primary key (reservationId, seatId), " +
+                            "constraint " + SEAT_CONSTRAINT + " unique (seatId))");
             // insert 2 rows
             stmt.executeUpdate("insert into reserved_seats values ("+
                     (long) 99 + ",'S99-99','Mrs. Testy','CHICKEN')");
@@ -53,6 +57,61 @@ public class ReservedSeats implements DatabaseTable {
         }
     }
 
+    /**
+     * Adds the unique constraint on seatId to a table created before it
+     * existed.  Returns true if the table was altered.  Double bookings are
+     * only caught with the constraint in place, so this throws rather than
+     * carry on without it; seats already booked more than once are listed
+     * in the message so they can be sorted out by hand.
+     */
+    public boolean addSeatConstraint() throws SQLException {
+        PreparedStatement check = conn.prepareStatement(
+                "SELECT c.constraintname FROM sys.sysconstraints c " +
+                "JOIN sys.systables t ON c.tableid = t.tableid " +
+                "WHERE t.tablename = 'RESERVED_SEATS' AND c.constraintname = ?");
+        check.setString(1, SEAT_CONSTRAINT);
+        ResultSet rs = check.executeQuery();
+        boolean exists = rs.next();
+        check.close();
+        if(exists) return false;
+        List<String> duplicates = duplicateSeats();
+        if(!duplicates.isEmpty())
+            throw new SQLException("Unable to add seat constraint, seats booked more " +
+                    "than once (seat: reservation ids): " + duplicates);
+        logger.info("Adding unique seat constraint to 'RESERVED_SEATS' ...");
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("ALTER TABLE reserved_seats ADD CONSTRAINT " +
+                SEAT_CONSTRAINT + " UNIQUE (seatId)");
+        stmt.close();
+        return true;
+    }
+
+    /**
+     * Every seat held by more than one reservation, as
+     * "seatId: reservationId, reservationId, ...".
+     */
+    public List<String> duplicateSeats() throws SQLException {
+        List<String> retList = new ArrayList<String>();
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery(
+                "SELECT seatId, reservationId FROM reserved_seats WHERE seatId IN " +
+                "(SELECT seatId FROM reserved_seats GROUP BY seatId HAVING COUNT(*) > 1) " +
+                "ORDER BY seatId, reservationId");
+        StringBuilder line = null;
+        String seatId = null;
+        while (rs.next()) {
+            if(!rs.getString(1).equals(seatId)) {
+                if(line!=null) retList.add(line.toString());
+                seatId = rs.getString(1);
+                line = new StringBuilder(seatId).append(": ").append(rs.getLong(2));
+            }
+            else line.append(", ").append(rs.getLong(2));
+        }
+        if(line!=null) retList.add(line.toString());
+        stmt.close();
+        return retList;
+    }
+
     @Override
     public List<String> outputTable() {
         List<String> retList = new ArrayList<String>();
@@ -7,6 +7,8 @@ import junit.framework.TestSuite;
 import static nblc.TableType.*;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 
 /**
  * Unit test for simple App.
@@ -40,6 +42,19 @@ public class AppTest
         assertTrue( true );
     }
 
+    // Free seats as the occupancy index counts them for the list.
+    private static int seatsLeft(List<Table> tables, List<ReservedSeat> reserved) {
+        SeatOccupancy occupancy = new SeatOccupancy(tables);
+        for(Table t : tables) {
+            for(ReservedSeat rs : reserved) {
+                if(Arrays.asList(t.seats).contains(rs.seat))
+                    occupancy.reserve(Collections.singletonList(
+                            SeatOccupancy.seatId(t.num, rs.seat.number)));
+            }
+        }
+        return ChristmasTea.seatsLeft(occupancy);
+    }
+
     public void testTables() throws Exception {
 
 	    Reservation r1 = new Reservation("West",2);
@@ -53,18 +68,18 @@ public class AppTest
 
 	    List<ReservedSeat> reslist = new ArrayList<ReservedSeat>();
 	    reslist = ChristmasTea.addReservation(tablist,reslist,r1,tablist.get(0).seats[0],"Judith");
-	    assertTrue (ChristmasTea.seatsLeft(tablist,reslist)==37);
+	    assertTrue (seatsLeft(tablist,reslist)==37);
 	    reslist = ChristmasTea.addReservation(tablist,reslist,r1,tablist.get(0).seats[1],"Liz");
-	    assertTrue (ChristmasTea.seatsLeft(tablist,reslist)==36);
+	    assertTrue (seatsLeft(tablist,reslist)==36);
 
 	    Reservation r2 = new Reservation("Reidford",2);
 	    assertTrue (r2.seatQty==2);
 
 	    reslist = ChristmasTea.addReservation(tablist,reslist,r2,tablist.get(1).seats[0],"Connie");
-	    assertTrue (ChristmasTea.seatsLeft(tablist,reslist)==35);
+	    assertTrue (seatsLeft(tablist,reslist)==35);
 
 	    reslist = ChristmasTea.addReservation(tablist,reslist,r2,tablist.get(2).seats[2],"Bernie");
-	    assertTrue (ChristmasTea.seatsLeft(tablist,reslist)==34);
+	    assertTrue (seatsLeft(tablist,reslist)==34);
 
 	    ChristmasTea.ListAttendees(tablist,reslist);
     }
@@ -0,0 +1,128 @@
+package nblc;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Times tarring a Derby database directory with the old single-threaded
+ * gzip stage against ParallelGzipOutputStream (ArchiveCodec.GZIP) and
+ * framed LZ4, which is not used in production.  With no
+ * argument it builds a database of 20000 bookings in a temporary
+ * directory; otherwise it archives the (shut down) database given.
+ * Run it by hand:
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *       -Dexec.mainClass=nblc.ArchiveCodecBenchmark [-Dexec.args=/path/to/attendees]
+ */
+public class ArchiveCodecBenchmark
+{
+    private static final int BOOKINGS = 20000;
+    private static final int BLOCK_SIZE = 1024*1024;
+
+    private interface Compressor {
+        OutputStream wrap(OutputStream out) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException, SQLException {
+        Path work = Files.createTempDirectory("codecBench");
+        Path db = args.length>0 ? Paths.get(args[0]) : buildDatabase(work.resolve("attendees"));
+        int cores = Runtime.getRuntime().availableProcessors();
+        long raw;
+        try (Stream<Path> files = Files.walk(db)) {
+            raw = files.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        }
+        System.out.println(String.format("%s: %.1f MB, %d core(s)", db, raw/1e6, cores));
+
+        Path target = work.resolve("bench.tar");
+        for (int pass = 0; pass < 3; pass++) {
+            System.out.println("pass "+pass+":");
+            run("gzip, 1 thread (old)", db, target, GzipCompressorOutputStream::new);
+            run("parallel gzip, 1 thread", db, target,
+                    out -> new ParallelGzipOutputStream(out, 1, BLOCK_SIZE));
+            run("parallel gzip, "+cores+" threads", db, target,
+                    out -> new ParallelGzipOutputStream(out, cores, BLOCK_SIZE));
+            run("lz4", db, target, FramedLZ4CompressorOutputStream::new);
+        }
+        Files.deleteIfExists(target);
+        if (args.length==0) DerbyBackup.deleteTree(work);
+    }
+
+    private static void run(String label, Path db, Path target, Compressor compressor)
+            throws IOException {
+        long start = System.nanoTime();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(compressor.wrap(
+                new BufferedOutputStream(Files.newOutputStream(target))))) {
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(db)) {
+                files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                tar.putArchiveEntry(new TarArchiveEntry(file.toFile(),
+                        db.relativize(file).toString()));
+                Files.copy(file, tar);
+                tar.closeArchiveEntry();
+            }
+            tar.finish();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("  %-28s %8.1f ms %8.2f MB",
+                label, elapsed/1e6, Files.size(target)/1e6));
+    }
+
+    private static Path buildDatabase(Path db) throws SQLException {
+        String url = "jdbc:derby:"+db;
+        Connection conn = DriverManager.getConnection(url+";create=true");
+        conn.setAutoCommit(false);
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("Create table reservations " +
+                "(id bigint primary key, name varchar(256), seatQty int)");
+        stmt.executeUpdate("Create table reserved_seats " +
+                "(reservationId bigint, seatId varchar(6), " +
+                " name varchar(256), mealEnum varchar(20), " +
+                "primary key (reservationId, seatId))");
+        stmt.close();
+        PreparedStatement res = conn.prepareStatement(
+                "insert into reservations (id, name, seatQty) values (?,?,?)");
+        PreparedStatement seat = conn.prepareStatement("insert into reserved_seats " +
+                "(reservationId, seatId, name, mealEnum) values (?,?,?,?)");
+        MealType[] meals = MealType.values();
+        for (long id = 1; id <= BOOKINGS; id++) {
+            res.setLong(1, id);
+            res.setString(2, "Party " + id);
+            res.setInt(3, 8);
+            res.executeUpdate();
+            for (int s = 1; s <= 8; s++) {
+                seat.setLong(1, id);
+                seat.setString(2, "S" + (id % 40) + "-" + s);
+                seat.setString(3, "Guest " + s + " of party " + id);
+                seat.setString(4, meals[(int) ((id + s) % meals.length)].name());
+                seat.executeUpdate();
+            }
+            if (id % 500 == 0) conn.commit();
+        }
+        conn.commit();
+        conn.close();
+        try {
+            DriverManager.getConnection(url+";shutdown=true");
+        } catch (SQLException expected) { }
+        return db;
+    }
+
+}
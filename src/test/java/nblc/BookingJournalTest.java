@@ -0,0 +1,62 @@
+package nblc;
+
+import org.javatuples.Pair;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class BookingJournalTest
+{
+    private static BookingJournal.Record booking(String party, int tableNo, int seatNo) {
+        Reservation r = new Reservation(party, 1);
+        List<Pair<Integer,ReservedSeat>> seats = new ArrayList<Pair<Integer,ReservedSeat>>();
+        seats.add(Pair.with(tableNo, new ReservedSeat(r, new Seat(seatNo), party, MealType.FISH)));
+        return BookingJournal.Record.create(r.reservationId, r, seats);
+    }
+
+    @Test
+    public void replayKeepsLatestStateAcrossRolloverAndCompaction() throws IOException {
+        Path dir = Files.createTempDirectory("journal");
+        // Tiny segments so a few bookings roll over and trigger compaction.
+        BookingJournal journal = new BookingJournal(dir, null, 2000, 2, 0);
+        List<Long> ids = new ArrayList<Long>();
+        for(int i=0; i<40; i++) {
+            BookingJournal.Record rec = booking("Party "+i, 1+i%10, 1+i/10);
+            journal.append(rec);
+            ids.add(rec.reservationId);
+        }
+        journal.append(BookingJournal.Record.delete(ids.get(3)));
+        journal.close();
+        assertTrue(journal.getStats().get("rollovers")>0);
+
+        Map<Long,BookingJournal.Record> state = BookingJournal.replay(dir);
+        assertEquals(40, state.size());
+        assertEquals(BookingJournal.Record.DELETE, state.get(ids.get(3)).op);
+        assertEquals("Party 7", state.get(ids.get(7)).reservation.name);
+        assertEquals(1, state.get(ids.get(7)).seats.size());
+    }
+
+    @Test
+    public void partialRecordAtTheEndIsIgnored() throws IOException {
+        Path dir = Files.createTempDirectory("journal");
+        BookingJournal journal = new BookingJournal(dir, null, 1<<20, 8, 0);
+        journal.append(booking("Whole", 2, 1));
+        journal.close();
+        Path segment = BookingJournal.segments(dir).get(0);
+        Files.write(segment, new byte[] { 0, 0, 1, 0, 42 }, StandardOpenOption.APPEND);
+
+        Map<Long,BookingJournal.Record> state = BookingJournal.replay(dir);
+        assertEquals(1, state.size());
+        assertEquals("Whole", state.values().iterator().next().reservation.name);
+    }
+
+}
@@ -0,0 +1,77 @@
+package nblc;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionPoolTest
+{
+    private static final String DB_URL = "jdbc:derby:memory:poolTest;create=true";
+
+    @BeforeClass
+    public static void createDb() throws SQLException {
+        Connection conn = DriverManager.getConnection(DB_URL);
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("create table counters (id int primary key, val int)");
+        stmt.executeUpdate("insert into counters values (1, 0)");
+        stmt.close();
+        conn.close();
+    }
+
+    @AfterClass
+    public static void dropDb() {
+        try {
+            DriverManager.getConnection("jdbc:derby:memory:poolTest;drop=true");
+        } catch (SQLException expected) { }
+    }
+
+    @Test
+    public void poolIsBounded() throws SQLException {
+        ConnectionPool pool = new ConnectionPool("test", DB_URL, true, 2, 50);
+        PooledConnection a = pool.acquire();
+        PooledConnection b = pool.acquire();
+        try {
+            pool.acquire();
+            fail("Third connection should not be handed out");
+        } catch (SQLException expected) {
+            assertEquals(Long.valueOf(1), pool.getStats().get("timeouts"));
+        }
+        a.close();
+        PooledConnection c = pool.acquire();
+        assertTrue(c.getConnection() == a.getConnection());
+        b.close();
+        c.close();
+        assertEquals(Long.valueOf(2), pool.getStats().get("created"));
+        assertEquals(Long.valueOf(0), pool.getStats().get("inUse"));
+        pool.close();
+    }
+
+    @Test
+    public void uncommittedWorkIsRolledBack() throws SQLException {
+        ConnectionPool pool = new ConnectionPool("test", DB_URL, false, 1, 50);
+        try (PooledConnection pc = pool.acquire()) {
+            Statement stmt = pc.getConnection().createStatement();
+            stmt.executeUpdate("update counters set val = 42 where id = 1");
+            stmt.close();
+        }
+        try (PooledConnection pc = pool.acquire()) {
+            Statement stmt = pc.getConnection().createStatement();
+            ResultSet rs = stmt.executeQuery("select val from counters where id = 1");
+            assertTrue(rs.next());
+            assertEquals(0, rs.getInt(1));
+            stmt.close();
+        }
+        pool.close();
+    }
+
+}
@@ -0,0 +1,69 @@
+package nblc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+public class DerbyBackupTest
+{
+    private static void update(ConnectionPool pool, String sql) throws SQLException {
+        try (PooledConnection pc = pool.acquire();
+             Statement stmt = pc.getConnection().createStatement()) {
+            stmt.executeUpdate(sql);
+            pc.commit();
+        }
+    }
+
+    @Test
+    public void restoredBaseRollsForwardThroughShippedLogs() throws Exception {
+        Path dir = Files.createTempDirectory("derby-backup");
+        String dbPath = dir.resolve("attendees").toString();
+        ConnectionPool pool = new ConnectionPool("backup", "jdbc:derby:"+dbPath+";create=true",
+                false, 1, 5000);
+        // The worker is never started, so everything shipped stays in the spool.
+        Path spool = dir.resolve("spool");
+        DriveUploadQueue queue = new DriveUploadQueue(spool, 1000, 60000);
+        DerbyBackup backup = new DerbyBackup(dbPath, "venue", pool, true, Long.MAX_VALUE, queue);
+
+        update(pool, "create table t (id int)");
+        update(pool, "insert into t values (1)");
+        backup.backup();
+        // This row is only in the logs shipped after the base.
+        update(pool, "insert into t values (2)");
+        backup.backup();
+
+        pool.close();
+        try {
+            DriverManager.getConnection("jdbc:derby:"+dbPath+";shutdown=true");
+            fail("database did not shut down");
+        } catch (SQLException expected) {
+        }
+
+        Path restoreDir = dir.resolve("restore");
+        Files.createDirectories(restoreDir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spool.resolve("data"))) {
+            for(Path f : files) Files.copy(f, restoreDir.resolve(f.getFileName()));
+        }
+        DerbyBackup.deleteTree(dir.resolve("attendees"));
+        String from = DerbyBackup.prepareRestore(restoreDir, dbPath);
+
+        try (Connection conn = DriverManager.getConnection(
+                "jdbc:derby:"+dbPath+";rollForwardRecoveryFrom="+from);
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("select count(*) from t")) {
+            rs.next();
+            assertEquals(2, rs.getInt(1));
+        }
+    }
+
+}
@@ -0,0 +1,32 @@
+package nblc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class DriveUploadQueueTest
+{
+    @Test
+    public void repeatedUploadsCoalesceAndSurviveRestart() throws IOException {
+        Path spool = Files.createTempDirectory("drive-spool");
+        // The worker is never started, so nothing leaves the spool.
+        DriveUploadQueue queue = new DriveUploadQueue(spool, 1000, 60000);
+        for(int i=0; i<10; i++)
+            queue.upload("1.json", "venue", ("version "+i).getBytes(StandardCharsets.UTF_8));
+        queue.upload("2.json", "venue", "other".getBytes(StandardCharsets.UTF_8));
+        queue.delete("3.json");
+        assertEquals(Long.valueOf(3), queue.getStats().get("pending"));
+        assertEquals(Long.valueOf(9), queue.getStats().get("coalesced"));
+
+        DriveUploadQueue restarted = new DriveUploadQueue(spool, 1000, 60000);
+        assertEquals(Long.valueOf(3), restarted.getStats().get("pending"));
+        assertEquals("version 9", new String(Files.readAllBytes(
+                spool.resolve("data").resolve("1.json")), StandardCharsets.UTF_8));
+    }
+
+}
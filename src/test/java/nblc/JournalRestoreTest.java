@@ -0,0 +1,64 @@
+package nblc;
+
+import org.javatuples.Pair;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+public class JournalRestoreTest
+{
+    private static List<Pair<Integer,ReservedSeat>> seat(Reservation r, int tableNo, int seatNo) {
+        List<Pair<Integer,ReservedSeat>> seats = new ArrayList<Pair<Integer,ReservedSeat>>();
+        seats.add(Pair.with(tableNo, new ReservedSeat(r, new Seat(seatNo), r.name, MealType.FISH)));
+        return seats;
+    }
+
+    private static DataAccessDerby open(String dbPath, boolean withJournal) throws Exception {
+        DataAccessDerby da = new DataAccessDerby(dbPath);
+        da.connectionToDerby();
+        da.normalDbUsage();
+        da.loadOccupancy();
+        if(withJournal) da.openJournal();
+        return da;
+    }
+
+    @Test
+    public void seatDeletedAndBookedAgainKeepsTheNewBooking() throws Exception {
+        String dbPath = Files.createTempDirectory("restore").resolve("attendees").toString();
+
+        // The restored base still has A on S3-5 ...
+        Reservation a = new Reservation("Deleted", 1);
+        DataAccessDerby base = open(dbPath, false);
+        assertTrue(base.createReservationTrans(a, seat(a, 3, 5)).isBooked());
+        base.close();
+
+        // ... while the journal says A was deleted and B took the seat.
+        Reservation b = new Reservation("Rebooked", 1);
+        Path journalDir = Paths.get(dbPath+".journal");
+        BookingJournal journal = new BookingJournal(journalDir, null, 1<<20, 8, 0);
+        journal.append(BookingJournal.Record.create(a.reservationId, a, seat(a, 3, 5)));
+        journal.append(BookingJournal.Record.delete(a.reservationId));
+        journal.append(BookingJournal.Record.create(b.reservationId, b, seat(b, 3, 5)));
+        journal.close();
+
+        DataAccessDerby restored = open(dbPath, true);
+        try {
+            List<Reservation> reservations = restored.getReservations();
+            assertEquals(1, reservations.size());
+            assertEquals(b.reservationId, reservations.get(0).reservationId);
+            List<ReservedSeat> seats = restored.getReservedSeats(reservations.get(0));
+            assertEquals(1, seats.size());
+            assertEquals(5, seats.get(0).seat.number);
+        } finally {
+            restored.close();
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package nblc;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+public class ParallelGzipOutputStreamTest
+{
+    private static byte[] compress(byte[] data, int threads, int blockSize) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(bytes, threads, blockSize)) {
+            // Uneven writes so blocks are cut in the middle of a write.
+            int off = 0;
+            while(off<data.length) {
+                int n = Math.min(data.length-off, 7000);
+                out.write(data, off, n);
+                off += n;
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] sample(int size) {
+        Random random = new Random(42);
+        byte[] data = new byte[size];
+        for(int i=0; i<size; i++) data[i] = (byte) ('a'+random.nextInt(6));
+        return data;
+    }
+
+    @Test
+    public void membersReadBackAsOneStream() throws IOException {
+        byte[] data = sample(300000);
+        byte[] gz = compress(data, 4, 16*1024);
+
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gz))) {
+            assertArrayEquals(data, IOUtils.toByteArray(in));
+        }
+        try (InputStream in = new GzipCompressorInputStream(new ByteArrayInputStream(gz), true)) {
+            assertArrayEquals(data, IOUtils.toByteArray(in));
+        }
+    }
+
+    @Test
+    public void emptyInputIsValidGzip() throws IOException {
+        byte[] gz = compress(new byte[0], 2, 1024);
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gz))) {
+            assertEquals(-1, in.read());
+        }
+    }
+
+}
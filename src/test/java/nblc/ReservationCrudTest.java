@@ -5,6 +5,7 @@ import org.junit.Test;
 import org.junit.Rule;
 import org.junit.rules.ExpectedException;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.CoreMatchers.is;
@@ -28,6 +29,19 @@ public class ReservationCrudTest
         ));
     }
 
+    @Test
+    public void versionMovesOnEveryChange() {
+        DataAccess da = new DataAccessFake();
+        Reservation r1 = new Reservation("West",2);
+        da.createReservation(r1);
+        long before = da.getVersion();
+        // Same number of reservations as before, but not the same listing.
+        da.deleteReservation(r1.reservationId);
+        da.createReservation(new Reservation("East",2));
+        assertEquals(1, da.getReservations().size());
+        assertTrue(da.getVersion()>before);
+    }
+
     @Test
     public void testRetrieve() {
 	try {
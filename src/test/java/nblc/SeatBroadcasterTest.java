@@ -0,0 +1,123 @@
+package nblc;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SeatBroadcasterTest
+{
+    private final List<Session> sessions = new ArrayList<Session>();
+
+    // A connection whose sends complete at once and are kept in written.
+    private Session session(List<String> written) {
+        RemoteEndpoint remote = (RemoteEndpoint) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { RemoteEndpoint.class },
+                (proxy, method, args) -> {
+                    if(method.getName().equals("sendString") && args.length==2) {
+                        written.add((String) args[0]);
+                        ((WriteCallback) args[1]).writeSuccess();
+                    }
+                    return null;
+                });
+        Session session = (Session) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { Session.class },
+                (proxy, method, args) -> {
+                    if(method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+                    if(method.getName().equals("equals")) return proxy==args[0];
+                    if(method.getName().equals("getRemote")) return remote;
+                    return null;
+                });
+        sessions.add(session);
+        return session;
+    }
+
+    @After
+    public void unregister() {
+        for(Session session : sessions) WsSingleton.getInstance().unregister(session);
+    }
+
+    @Test
+    public void changesInOneWindowGoOutAsOneFramePerSession() {
+        List<String> toA = new ArrayList<String>(), toB = new ArrayList<String>();
+        Session a = session(toA), b = session(toB);
+        WsSingleton.getInstance().register(a, "a");
+        WsSingleton.getInstance().register(b, "b");
+
+        SeatBroadcaster broadcaster = SeatBroadcaster.getInstance();
+        broadcaster.publish("T1S1", "pending", a);
+        broadcaster.publish("T1S2", "pending", a);
+        broadcaster.publish("T1S1", "nonpending", a);
+        broadcaster.publish("T2S1", "pending", b);
+        broadcaster.flush();
+        long seq = broadcaster.getStats().get("seq");
+
+        assertEquals(1, toA.size());
+        assertEquals("{\"seq\":"+seq+",\"delta\":[{\"seat\":\"T2S1\", \"state\":\"pending\"}]}",
+                toA.get(0));
+        assertEquals(1, toB.size());
+        assertEquals("{\"seq\":"+seq+",\"delta\":[{\"seat\":\"T1S1\", \"state\":\"nonpending\"},"
+                + "{\"seat\":\"T1S2\", \"state\":\"pending\"}]}", toB.get(0));
+    }
+
+    @Test
+    public void snapshotIsBuiltOncePerChange() {
+        SeatBroadcaster broadcaster = SeatBroadcaster.getInstance();
+        broadcaster.publish("S3-1", "pending", null);
+        broadcaster.publish("S3-2", "pending", null);
+        broadcaster.flush();
+        broadcaster.publish("S3-2", "reserved", null);
+        broadcaster.flush();
+        long seq = broadcaster.getStats().get("seq");
+
+        String snapshot = broadcaster.snapshotText();
+        assertTrue(snapshot.startsWith("{\"seq\":"+seq+","));
+        assertTrue(snapshot.contains("\"S3-1\""));
+        assertFalse(snapshot.contains("\"S3-2\""));
+        assertSame(snapshot, broadcaster.snapshotText());
+
+        ByteBuffer binary = broadcaster.snapshotBinary();
+        assertEquals(SeatCodec.SNAPSHOT, binary.get(0));
+        assertEquals((int) seq, binary.getInt(4));
+    }
+
+    @Test
+    public void reconnectGetsOnlyWhatItMissed() {
+        SeatBroadcaster broadcaster = SeatBroadcaster.getInstance();
+        broadcaster.publish("S5-1", "pending", null);
+        broadcaster.flush();
+        long seen = broadcaster.getStats().get("seq");
+        broadcaster.publish("S5-2", "pending", null);
+        broadcaster.flush();
+        broadcaster.publish("S5-2", "nonpending", null);
+        broadcaster.publish("S5-3", "reserved", null);
+        broadcaster.flush();
+        long seq = broadcaster.getStats().get("seq");
+
+        List<String> written = new ArrayList<String>();
+        WsPeer peer = WsSingleton.getInstance().register(session(written), "c");
+        broadcaster.resume(peer, seen);
+        assertEquals(1, written.size());
+        assertEquals("{\"seq\":"+seq+",\"delta\":[{\"seat\":\"S5-2\", \"state\":\"nonpending\"},"
+                + "{\"seat\":\"S5-3\", \"state\":\"reserved\"}]}", written.get(0));
+
+        // A number this run never handed out means a snapshot, flagged
+        // so the client fetches reserved seats again.
+        broadcaster.resume(peer, seq+100);
+        assertEquals(2, written.size());
+        assertTrue(written.get(1).contains("\"snapshot\""));
+        assertTrue(written.get(1).endsWith(",\"refetch\":true}"));
+    }
+
+}
@@ -0,0 +1,41 @@
+package nblc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SeatCodecTest
+{
+    @Test
+    public void recordsRoundTrip() {
+        ByteBuffer frame = ByteBuffer.allocate(3*SeatCodec.RECORD_BYTES);
+        SeatCodec.put(frame, "S14-11", "pending");
+        SeatCodec.put(frame, "S300-2", "reserved");
+        SeatCodec.put(frame, "S1-1", "nonpending");
+        frame.flip();
+        assertEquals(12, frame.remaining());
+
+        List<String> decoded = new ArrayList<String>();
+        SeatCodec.forEach(frame.array(), 0, frame.limit(),
+                (seat, state) -> decoded.add(seat+" "+state));
+        assertEquals(3, decoded.size());
+        assertEquals("S14-11 pending", decoded.get(0));
+        assertEquals("S300-2 reserved", decoded.get(1));
+        assertEquals("S1-1 nonpending", decoded.get(2));
+    }
+
+    @Test
+    public void unencodableSeatsAreRefused() {
+        ByteBuffer frame = ByteBuffer.allocate(SeatCodec.RECORD_BYTES);
+        assertFalse(SeatCodec.put(frame, "stage", "pending"));
+        assertFalse(SeatCodec.put(frame, "S1-300", "pending"));
+        assertFalse(SeatCodec.put(frame, "S1-1", "sold"));
+        assertEquals(0, frame.position());
+    }
+
+}
@@ -0,0 +1,62 @@
+package nblc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SeatHoldsTest
+{
+    @Test
+    public void holdsBelongToOneOwner() {
+        SeatHolds holds = new SeatHolds(60000, 1000);
+        assertTrue(holds.hold("S1-1", "alice"));
+        assertTrue(holds.hold("S1-1", "alice"));
+        assertFalse(holds.hold("S1-1", "bob"));
+        assertEquals(Arrays.asList("S1-1"),
+                holds.heldByOthers(Arrays.asList("S1-1","S1-2"), "bob"));
+        assertTrue(holds.heldByOthers(Arrays.asList("S1-1"), "alice").isEmpty());
+
+        assertFalse(holds.release("S1-1", "bob"));
+        assertTrue(holds.release("S1-1", "alice"));
+        assertTrue(holds.hold("S1-1", "bob"));
+    }
+
+    @Test
+    public void disconnectReleasesEverything() {
+        SeatHolds holds = new SeatHolds(60000, 1000);
+        final List<String> reopened = new ArrayList<String>();
+        holds.addListener(reopened::add);
+        holds.hold("S2-1", "alice");
+        holds.hold("S2-2", "alice");
+        holds.hold("S2-3", "bob");
+        assertEquals(2, holds.releaseAll("alice").size());
+        assertEquals(2, reopened.size());
+        assertEquals(Arrays.asList("S2-3"), holds.getPendingSeats());
+    }
+
+    @Test
+    public void unrenewedHoldsExpire() throws InterruptedException {
+        SeatHolds holds = new SeatHolds(200, 10);
+        final List<String> reopened = new ArrayList<String>();
+        holds.addListener(reopened::add);
+        holds.hold("S3-1", "alice");
+        holds.hold("S3-2", "bob");
+        Thread.sleep(120);
+        holds.renew("bob");
+        holds.advance(System.currentTimeMillis());
+        assertTrue(reopened.isEmpty());
+
+        Thread.sleep(130);
+        holds.advance(System.currentTimeMillis());
+        assertEquals(Arrays.asList("S3-1"), reopened);
+        assertEquals(Arrays.asList("S3-2"), holds.getPendingSeats());
+        assertEquals(Long.valueOf(1), holds.getStats().get("expired"));
+    }
+
+}
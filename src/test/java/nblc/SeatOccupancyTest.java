@@ -0,0 +1,66 @@
+package nblc;
+
+import org.junit.Test;
+
+import static nblc.TableType.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class SeatOccupancyTest
+{
+    private final List<Table> tablist = Arrays.asList(new Table[] {
+        new Table(1, TEN),
+        new Table(2, EIGHTEEN)
+    });
+
+    @Test
+    public void claimIsAllOrNothing() {
+        SeatOccupancy occupancy = new SeatOccupancy(tablist);
+        assertTrue(occupancy.tryReserve(Arrays.asList("S1-1","S1-2")).isEmpty());
+        assertEquals(26, occupancy.seatsLeft());
+
+        List<String> taken = occupancy.tryReserve(Arrays.asList("S1-3","S1-2"));
+        assertEquals(Arrays.asList("S1-2"), taken);
+        assertFalse(occupancy.isTaken("S1-3"));
+        assertEquals(8, occupancy.seatsLeft(1));
+        assertEquals(8, tablist.get(0).seatsLeft(occupancy));
+    }
+
+    @Test
+    public void releaseFreesSeats() {
+        SeatOccupancy occupancy = new SeatOccupancy(tablist);
+        occupancy.reserve(Arrays.asList("S2-18","S99-99"));
+        assertTrue(occupancy.isTaken(2, 18));
+        assertTrue(occupancy.isTaken("S99-99"));
+        assertEquals(2, occupancy.seatsTaken());
+        assertEquals(Arrays.asList("S2-18"), occupancy.getReservedSeatIds());
+
+        occupancy.release(Arrays.asList("S2-18","S99-99"));
+        assertEquals(0, occupancy.seatsTaken());
+        assertEquals(28, ChristmasTea.seatsLeft(occupancy));
+    }
+
+    @Test
+    public void claimsAreListedOnceCommitted() {
+        SeatOccupancy occupancy = new SeatOccupancy(tablist);
+        assertTrue(occupancy.tryReserve(Arrays.asList("S1-4","S2-1")).isEmpty());
+        assertTrue(occupancy.getReservedSeatIds().isEmpty());
+        assertEquals(26, occupancy.seatsLeft());
+
+        occupancy.commit(Arrays.asList("S1-4","S2-1"));
+        assertEquals(Arrays.asList("S1-4","S2-1"), occupancy.getReservedSeatIds());
+    }
+
+    @Test
+    public void duplicateSeatInOneClaimConflicts() {
+        SeatOccupancy occupancy = new SeatOccupancy(tablist);
+        assertEquals(Arrays.asList("S1-5"),
+                occupancy.tryReserve(Arrays.asList("S1-5","S1-5")));
+        assertEquals(0, occupancy.seatsTaken());
+    }
+
+}
@@ -0,0 +1,137 @@
+package nblc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Compares re-preparing every statement (the old DataAccessDerby pattern)
+ * against the per-connection cache in PooledConnection, for an 18-seat
+ * booking and for a single-reservation read.  Run it by hand:
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *       -Dexec.mainClass=nblc.StatementCacheBenchmark
+ */
+public class StatementCacheBenchmark
+{
+    private static final String DB_URL = "jdbc:derby:memory:stmtBench;create=true";
+    private static final String INSERT_RESERVATION =
+            "insert into reservations (id, name, seatQty) values (?,?,?)";
+    private static final String INSERT_RESERVED_SEAT =
+            "insert into reserved_seats " +
+            "(reservationId, seatId, name, mealEnum) values (?,?,?,?)";
+    private static final String SELECT_SEATS =
+            "SELECT seatId, name, mealEnum FROM reserved_seats WHERE reservationId=?";
+    private static final int ROUNDS = 2000;
+
+    private static long nextId = 1;
+
+    public static void main(String[] args) throws SQLException {
+        Connection setup = DriverManager.getConnection(DB_URL);
+        Statement stmt = setup.createStatement();
+        stmt.executeUpdate("Create table reservations " +
+                "(id bigint primary key, name varchar(256), seatQty int)");
+        stmt.executeUpdate("Create table reserved_seats " +
+                "(reservationId bigint, seatId varchar(6), " +
+                " name varchar(256), mealEnum varchar(20), " +
+                "primary key (reservationId, seatId))");
+        stmt.close();
+        setup.close();
+
+        ConnectionPool pool = new ConnectionPool("bench", DB_URL, false, 1, 1000);
+        for (int pass = 0; pass < 3; pass++) {
+            long uncached = 0, cached = 0, uncachedRead = 0, cachedRead = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                try (PooledConnection pc = pool.acquire()) {
+                    long start = System.nanoTime();
+                    long id = bookUncached(pc.getConnection());
+                    uncached += System.nanoTime() - start;
+                    start = System.nanoTime();
+                    readUncached(pc.getConnection(), id);
+                    uncachedRead += System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    id = bookCached(pc);
+                    cached += System.nanoTime() - start;
+                    start = System.nanoTime();
+                    readCached(pc, id);
+                    cachedRead += System.nanoTime() - start;
+                }
+            }
+            System.out.println(String.format(
+                    "pass %d: booking %.1f us -> %.1f us, read %.1f us -> %.1f us",
+                    pass,
+                    uncached / 1000.0 / ROUNDS, cached / 1000.0 / ROUNDS,
+                    uncachedRead / 1000.0 / ROUNDS, cachedRead / 1000.0 / ROUNDS));
+        }
+        System.out.println(pool.getStats());
+        pool.close();
+        try {
+            DriverManager.getConnection("jdbc:derby:memory:stmtBench;drop=true");
+        } catch (SQLException expected) { }
+    }
+
+    private static long bookUncached(Connection conn) throws SQLException {
+        long id = nextId++;
+        PreparedStatement insert = conn.prepareStatement(INSERT_RESERVATION);
+        insert.setLong(1, id);
+        insert.setString(2, "Party " + id);
+        insert.setInt(3, 18);
+        insert.executeUpdate();
+        insert.close();
+        for (int seat = 1; seat <= 18; seat++) {
+            PreparedStatement stmt = conn.prepareStatement(INSERT_RESERVED_SEAT);
+            stmt.setLong(1, id);
+            stmt.setString(2, "S1-" + seat);
+            stmt.setString(3, "Guest " + seat);
+            stmt.setString(4, "CHICKEN");
+            stmt.executeUpdate();
+            stmt.close();
+        }
+        conn.commit();
+        return id;
+    }
+
+    private static long bookCached(PooledConnection pc) throws SQLException {
+        long id = nextId++;
+        PreparedStatement insert = pc.prepare(INSERT_RESERVATION);
+        insert.setLong(1, id);
+        insert.setString(2, "Party " + id);
+        insert.setInt(3, 18);
+        insert.executeUpdate();
+        for (int seat = 1; seat <= 18; seat++) {
+            PreparedStatement stmt = pc.prepare(INSERT_RESERVED_SEAT);
+            stmt.setLong(1, id);
+            stmt.setString(2, "S1-" + seat);
+            stmt.setString(3, "Guest " + seat);
+            stmt.setString(4, "CHICKEN");
+            stmt.executeUpdate();
+        }
+        pc.commit();
+        return id;
+    }
+
+    private static int readUncached(Connection conn, long id) throws SQLException {
+        int rows = 0;
+        PreparedStatement stmt = conn.prepareStatement(SELECT_SEATS);
+        stmt.setLong(1, id);
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) rows++;
+        stmt.close();
+        return rows;
+    }
+
+    private static int readCached(PooledConnection pc, long id) throws SQLException {
+        int rows = 0;
+        PreparedStatement stmt = pc.prepare(SELECT_SEATS);
+        stmt.setLong(1, id);
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) rows++;
+        }
+        return rows;
+    }
+
+}
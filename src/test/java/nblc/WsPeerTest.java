@@ -0,0 +1,91 @@
+package nblc;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+public class WsPeerTest
+{
+    // A connection whose sends only complete when the test says so.
+    private final List<String> written = new ArrayList<String>();
+    private final List<WriteCallback> callbacks = new ArrayList<WriteCallback>();
+    private boolean closed = false;
+    private int pings = 0;
+
+    private Session session() {
+        RemoteEndpoint remote = (RemoteEndpoint) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { RemoteEndpoint.class },
+                (proxy, method, args) -> {
+                    if(method.getName().equals("sendPing")) pings++;
+                    if(method.getName().equals("sendString") && args.length==2) {
+                        written.add((String) args[0]);
+                        callbacks.add((WriteCallback) args[1]);
+                    }
+                    return null;
+                });
+        return (Session) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { Session.class },
+                (proxy, method, args) -> {
+                    if(method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+                    if(method.getName().equals("equals")) return proxy==args[0];
+                    if(method.getName().equals("getRemote")) return remote;
+                    if(method.getName().equals("close")) closed = true;
+                    if(method.getName().equals("isOpen")) return !closed;
+                    return null;
+                });
+    }
+
+    @Test
+    public void sendsOneAtATimeInOrder() {
+        WsPeer peer = new WsPeer(session(), null, 10, 60000);
+        assertTrue(peer.send("a"));
+        assertTrue(peer.send("b"));
+        assertTrue(peer.send("c"));
+        assertEquals(1, written.size());
+        assertEquals(2, peer.queued());
+
+        callbacks.get(0).writeSuccess();
+        callbacks.get(1).writeSuccess();
+        assertEquals(3, written.size());
+        assertEquals("c", written.get(2));
+        assertEquals(0, peer.queued());
+    }
+
+    @Test
+    public void fullQueueDropsThePeer() {
+        WsPeer peer = new WsPeer(session(), null, 2, 60000);
+        assertTrue(peer.send("1"));
+        assertTrue(peer.send("2"));
+        assertTrue(peer.send("3"));
+        assertFalse(peer.send("4"));
+        assertTrue(closed);
+        assertFalse(peer.send("5"));
+        assertEquals(1, written.size());
+    }
+
+    @Test
+    public void heartbeatPingsWithoutQueueing() {
+        WsSingleton ws = WsSingleton.getInstance();
+        Session session = session();
+        WsPeer peer = ws.register(session, null);
+        try {
+            assertTrue(peer.send("a"));
+            ws.heartbeat();
+            assertEquals(1, pings);
+            assertEquals(0, peer.queued());
+            assertFalse(closed);
+        } finally {
+            ws.unregister(session);
+        }
+    }
+
+}
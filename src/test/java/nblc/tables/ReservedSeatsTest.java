@@ -0,0 +1,57 @@
+package nblc.tables;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+public class ReservedSeatsTest
+{
+    // A table as it was before the unique seat constraint.
+    private static Connection oldTable(String name, String... rows) throws SQLException {
+        Connection conn = DriverManager.getConnection("jdbc:derby:memory:"+name+";create=true");
+        Statement stmt = conn.createStatement();
+        stmt.executeUpdate("Create table reserved_seats " +
+                "(reservationId bigint, seatId varchar(6), " +
+                " name varchar(256), mealEnum varchar(20), " +
+                "primary key (reservationId, seatId))");
+        for(String row : rows) stmt.executeUpdate("insert into reserved_seats values ("+row+")");
+        stmt.close();
+        return conn;
+    }
+
+    @Test
+    public void constraintIsAddedOnce() throws SQLException {
+        try (Connection conn = oldTable("seatsUnique",
+                "1,'S3-5','Ann','FISH'", "2,'S3-6','Bob','CHICKEN'")) {
+            ReservedSeats seats = new ReservedSeats(conn);
+            assertTrue(seats.addSeatConstraint());
+            assertFalse(seats.addSeatConstraint());
+        }
+    }
+
+    @Test
+    public void existingDoubleBookingsAreReported() throws SQLException {
+        try (Connection conn = oldTable("seatsTwice",
+                "1,'S3-5','Ann','FISH'", "2,'S3-5','Bob','CHICKEN'",
+                "3,'S3-5','Cy','FISH'", "3,'S3-6','Di','FISH'")) {
+            ReservedSeats seats = new ReservedSeats(conn);
+            assertEquals(Arrays.asList("S3-5: 1, 2, 3"), seats.duplicateSeats());
+            try {
+                seats.addSeatConstraint();
+                fail("constraint added over duplicate seats");
+            } catch (SQLException se) {
+                assertTrue(se.getMessage().contains("S3-5: 1, 2, 3"));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,13 @@
+// The server answers REST calls with 503 and Retry-After while it is
+// still restoring its database; wait as told and try again.
+const fetchWhenReady = async (url, attempts = 60) => {
+	for(let i=1; ; i++) {
+		const response = await fetch(url);
+		if(response.status!==503 || i>=attempts) return response;
+		const retryAfter = parseInt(response.headers.get('Retry-After'));
+		if(isNaN(retryAfter)) return response;
+		await new Promise(resolve => setTimeout(resolve, retryAfter*1000));
+	}
+}
+
+export {fetchWhenReady};
@@ -1,4 +1,8 @@
-const fetchReservations = async _ => {
+import { fetchWhenReady } from './ReadyFetch.js';
+
+const pageSize = 100;
+
+const fetchReservations = async (prefix) => {
 	if(window.location.href.includes(5173)) {
 		const reservationsReceived = new CustomEvent('reservationsReceived',{
 			detail: {
@@ -36,15 +40,25 @@ const fetchReservations = async _ => {
 		window.dispatchEvent(reservationsReceived);
 	}
 	else {
-		const response = await fetch(window.location.origin+'/rest/reservation');
-		const reservations = await response.json();
-		const reservationsReceived = new CustomEvent('reservationsReceived',{
-			detail: {
-				payload: reservations
-			},
-			bubbles: true
-		});
-		window.dispatchEvent(reservationsReceived);
+		// Page through the listing so the first reservations show up
+		// straight away; each event carries everything loaded so far.
+		const reservations = [];
+		let cursor = '';
+		do {
+			const response = await fetchWhenReady(window.location.origin+'/rest/reservation?limit='+
+				pageSize+(cursor ? '&after='+cursor : '')+
+				(prefix ? '&prefix='+encodeURIComponent(prefix) : ''));
+			reservations.push(...await response.json());
+			cursor = response.headers.get('X-Next-Cursor');
+			const reservationsReceived = new CustomEvent('reservationsReceived',{
+				detail: {
+					payload: reservations,
+					complete: !cursor
+				},
+				bubbles: true
+			});
+			window.dispatchEvent(reservationsReceived);
+		} while(cursor);
 	}
 }
 
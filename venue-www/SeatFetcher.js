@@ -1,3 +1,5 @@
+import { fetchWhenReady } from './ReadyFetch.js';
+
 const fetchSeats = async _ => {
 	if(window.location.href.includes(5173)) {
 		const seatsReceived = new CustomEvent('seatsReceived',{
@@ -8,7 +10,7 @@ const fetchSeats = async _ => {
 		});
 		window.dispatchEvent(seatsReceived);
 	} else {
-		const response = await fetch(window.location.origin+'/rest/reservedSeats');
+		const response = await fetchWhenReady(window.location.origin+'/rest/reservedSeats');
 		const seats = await response.json();
 		const seatsReceived = new CustomEvent('seatsReceived',{
 			detail: {
@@ -1,6 +1,15 @@
 import { html, render } from './lit-all.min.js';
 import { fetchSeats } from './SeatFetcher.js';
 
+// Binary seat updates, see SeatCodec.java; the index is the state byte.
+const SEAT_PROTOCOL = "seat-bin.v1";
+const SEAT_STATES = ["nonpending","pending","reserved"];
+const SEAT_DELTA = 0, SEAT_SNAPSHOT = 1;
+const SEAT_REFETCH = 1;
+// Seat holds lapse after 75 s on the server unless renewed; a user still
+// working on the form renews them at most this often.
+const HOLD_KEEPALIVE_MS = 30000;
+
 class SeatPicker extends HTMLElement {
 
 	constructor() {
@@ -17,8 +26,13 @@ class SeatPicker extends HTMLElement {
 		this.selectedSeats=[];
 		this.reservedSeats=[];
 		this.seatSocket=null;
-		this.pingCount=0;
+		this.holdToken=null;
+		// Sequence number of the last snapshot or delta applied.
+		this.seatSeq=0;
+		// Server run the sequence numbers belong to.
+		this.seatEpoch=null;
 		this.totalSeatCount=0;
+		this.lastKeepAlive=0;
 	}
 
 	connectedCallback() {
@@ -41,10 +55,12 @@ class SeatPicker extends HTMLElement {
 			<slot name="reserved-seat" @slotchange=${this.onSlotChange}></slot>
 		`;
 		render(rootTemplate,this.root);
+		document.addEventListener("keydown",this.onUserActivity,true);
+		document.addEventListener("pointerdown",this.onUserActivity,true);
 		this.connect_socket();
 	}
 
-	static observedAttributes = ["maxselect","activated","id","finalized"];
+	static observedAttributes = ["maxselect","activated","id"];
 
 	attributeChangedCallback(name, oldValue, newValue) {
 		if(name==="maxselect") {
@@ -83,31 +99,24 @@ class SeatPicker extends HTMLElement {
 			window.addEventListener('seatsReceived',
 				this.seatsListener,true);
 		}
-		else if(name==="finalized" && oldValue==null) {
-			let i = 0;
-			console.log("selectedSeat length is: "+this.selectedSeats.length);
-			console.log(this.selectedSeats);
-			while (i<this.selectedSeats.length) {
-				console.log("working on seat: "+i);
-				if(this.seatSocket!=null && this.seatSocket.readyState == 1) {
-					console.log("sending 'reserved' status");
-					this.seatSocket.send(JSON.stringify({
-						"seat":this.selectedSeats[i].id,
-						"state":"reserved"
-					}));
-				}
-				else {
-					console.log("socket is not ready");
-				}
-				i++;
-			}
-		}
 		else console.log("Attribute "+name+" was changed!");
 	}
 
 	disconnectedCallback() {
 		console.log("Seat picker (new) just got disconnected for "+
 			this.elementId+"!");
+		document.removeEventListener("keydown",this.onUserActivity,true);
+		document.removeEventListener("pointerdown",this.onUserActivity,true);
+	}
+
+	// Holds are kept only for a party that is still filling in the form;
+	// an idle tab lets them lapse even though its socket stays open.
+	onUserActivity = () => {
+		if(this.selectedSeats.length==0 || this.seatSocket?.readyState!==1) return;
+		const now = Date.now();
+		if(now-this.lastKeepAlive<HOLD_KEEPALIVE_MS) return;
+		this.lastKeepAlive = now;
+		this.seatSocket.send("ping");
 	}
 
 	onEmbedUnload() { console.log("Unloading "+this.elementId); }
@@ -184,6 +193,9 @@ class SeatPicker extends HTMLElement {
 				if(myEle == null) {
 					console.log("Couldn't retrieve SVG");
 				}
+				// Seats are fetched again after a reconnect, so start over.
+				p.totalSeatCount = 0;
+				p.reservedSeats = [];
 				for(var t=1; t<30; t++) {
 					for (var s = 1; s < 20; s++) {
 						var seatString = 'S' + t + '-' + s;
@@ -195,7 +207,9 @@ class SeatPicker extends HTMLElement {
 									picker.reservedSeats.push(seat);
 									seat.style.fill = "red";
 								}
-								else { seat.style.fill = "green"; }
+								else if(!p.selectedSeats.includes(seat)) {
+									seat.style.fill = "green";
+								}
 							}
 							seat.addEventListener("click",p.seatClicked);
 						}
@@ -280,8 +294,7 @@ class SeatPicker extends HTMLElement {
 				bubbles: true
 			});
 			this.dispatchEvent(seatSelected);
-			this.seatSocket.send(
-				JSON.stringify({"seat":seat.id,"state":"pending"}));
+			this.sendSeatState(seat.id,"pending");
 		} else if (Number(this.selectedSeats.indexOf(seat))>=0 &&
 				this.getAttribute('maxselect')!=="0") {
 			const index = this.selectedSeats.indexOf(seat);
@@ -294,53 +307,137 @@ class SeatPicker extends HTMLElement {
 				bubbles: true
 			});
 			this.dispatchEvent(seatUnselected);
-			this.seatSocket.send(
-				JSON.stringify({"seat":seat.id,"state":"nonpending"}));
+			this.sendSeatState(seat.id,"nonpending");
 		}
 		//console.log('selectedSeat array: '+this.selectedSeats);
 	}
 
 	connect_socket() {
+		// Ask for the binary seat protocol; a server that does not offer it
+		// leaves the connection on JSON.
+		// After a drop, ask only for the changes missed since the last one seen.
+		// A server that restarted (new epoch) or no longer has them answers
+		// with a refetch snapshot instead.
+		const path = "/ws/msg"+(this.seatEpoch==null ? "" :
+			"?since="+this.seatEpoch+"-"+this.seatSeq);
 		if(window.location.protocol==='https:')
 			this.seatSocket =
-				new WebSocket("wss://"+window.location.host+"/ws/msg");
+				new WebSocket("wss://"+window.location.host+path,[SEAT_PROTOCOL]);
 		else
 			this.seatSocket =
-				new WebSocket("ws://"+window.location.host+"/ws/msg");
-		this.seatSocket.addEventListener("open", e => {
-			this.heartbeat(this.seatSocket,this.pingCount);
-		});
-		this.seatSocket.onclose = (event) => this.connect_socket;
+				new WebSocket("ws://"+window.location.host+path,[SEAT_PROTOCOL]);
+		this.seatSocket.binaryType = "arraybuffer";
+		// Spread reconnects out so a blip does not bring every client back
+		// at once.
+		this.seatSocket.onclose = (event) =>
+			setTimeout(() => this.connect_socket(), 500+Math.random()*2000);
 		this.seatSocket.onmessage = (event) => {
+			if(event.data instanceof ArrayBuffer) {
+				// seat-bin.v1: kind (u8), 3 zero bytes, seq (u32), then
+				// table (u16), seat (u8), state (u8) per record
+				const view = new DataView(event.data);
+				const seats = [];
+				for(let i=8; i+4<=view.byteLength; i+=4) {
+					seats.push({
+						"seat":'S'+view.getUint16(i)+'-'+view.getUint8(i+2),
+						"state":SEAT_STATES[view.getUint8(i+3)]
+					});
+				}
+				const kind = view.getUint8(0), seq = view.getUint32(4);
+				if(kind===SEAT_SNAPSHOT) this.applySnapshot(seq,seats.map(m => m.seat),
+					(view.getUint8(1) & SEAT_REFETCH)!==0);
+				else if(kind===SEAT_DELTA) this.applyDelta(seq,seats);
+				else seats.forEach(m => this.applySeatState(m));
+				return;
+			}
 			console.log(event.data);
 			try {
 				let myMsg = JSON.parse(event.data);
-				let sp = document.getElementById(this.elementId);
-				let myDoc = sp?.getSVGDocument();
-				let seat = myDoc.getElementById(myMsg.seat);
-				if(myMsg.state=="pending") {
-					seat.style.fill="yellow";
-					this.reservedSeats.push(seat);
-				} else if(myMsg.state=="nonpending") {
-					seat.style.fill="green";
-					this.reservedSeats = reservedSeats.filter(e => e!=seat);
-				} else if(myMsg.state=="reserved") {
-					seat.style.fill="red";
-					this.reservedSeats.push(seat);
+				if(myMsg.holdToken) {
+					const resumed = this.seatEpoch!=null;
+					this.holdToken = myMsg.holdToken;
+					if(myMsg.epoch!==this.seatEpoch) this.seatSeq = 0;
+					this.seatEpoch = myMsg.epoch;
+					// Holds die with the old connection; take this party's
+					// seats again.
+					if(resumed) this.selectedSeats.forEach(e =>
+						this.sendSeatState(e.id,"pending"));
+					return;
 				}
+				if(myMsg.snapshot) this.applySnapshot(myMsg.seq,myMsg.snapshot,myMsg.refetch===true);
+				else if(myMsg.delta) this.applyDelta(myMsg.seq,myMsg.delta);
+				else this.applySeatState(myMsg);
 			} catch (err) {
 				if(event.data=="pong")console.log("response received!");
 			}
 		};
 	}
 
-	heartbeat(seatSocket,pingCount) {
-		if(!seatSocket) return;
-		if(seatSocket.readyState !== 1) return;
-		seatSocket.send("ping");
-		if(pingCount++===21) location.reload()
-		let that = this;
-		setTimeout(function() { that.heartbeat(seatSocket,pingCount)},30000);
+	sendSeatState(seatId,state) {
+		const m = /^S([0-9]+)-([0-9]+)$/.exec(seatId);
+		if(this.seatSocket.protocol===SEAT_PROTOCOL && m) {
+			const view = new DataView(new ArrayBuffer(4));
+			view.setUint16(0,Number(m[1]));
+			view.setUint8(2,Number(m[2]));
+			view.setUint8(3,SEAT_STATES.indexOf(state));
+			this.seatSocket.send(view.buffer);
+		}
+		else this.seatSocket.send(JSON.stringify({"seat":seatId,"state":state}));
+	}
+
+	// Every seat pending as of seq; seats shown pending that are not in
+	// the list have been let go since.  Reserved seats are not part of a
+	// snapshot: with refetch they may have changed unseen, so they are
+	// fetched again (the reply ends in another initSeats).
+	applySnapshot(seq,pendingIds,refetch) {
+		this.seatSeq = seq;
+		if(refetch) fetchSeats();
+		let myDoc = document.getElementById(this.elementId)?.getSVGDocument();
+		if(!myDoc) return;
+		this.reservedSeats.filter(e => e.style.fill=="yellow" && !pendingIds.includes(e.id))
+			.forEach(e => this.applySeatState({"seat":e.id,"state":"nonpending"}));
+		pendingIds.filter(id => !this.isSelected(id))
+			.forEach(id => this.applySeatState({"seat":id,"state":"pending"}));
+	}
+
+	// Deltas up to the last snapshot are already part of it.  After a
+	// reconnect they may include this party's own seats, which stay as
+	// they are.
+	applyDelta(seq,changes) {
+		if(seq<=this.seatSeq) return;
+		this.seatSeq = seq;
+		changes.filter(m => !this.isSelected(m.seat))
+			.forEach(m => this.applySeatState(m));
+	}
+
+	isSelected(seatId) {
+		return this.selectedSeats.some(e => e.id==seatId);
+	}
+
+	applySeatState(myMsg) {
+		let sp = document.getElementById(this.elementId);
+		let myDoc = sp?.getSVGDocument();
+		let seat = myDoc.getElementById(myMsg.seat);
+		if(!seat) return;
+		if(myMsg.state=="pending") {
+			// Only a claim of ours the server turned down names a seat we
+			// selected: someone else holds it, so it is no longer ours.
+			if(this.selectedSeats.includes(seat)) {
+				this.selectedSeats = this.selectedSeats.filter(e => e!=seat);
+				this.dispatchEvent(new CustomEvent('seatUnselected',{
+					detail: { payload: seat },
+					bubbles: true
+				}));
+			}
+			seat.style.fill="yellow";
+			if(!this.reservedSeats.includes(seat)) this.reservedSeats.push(seat);
+		} else if(myMsg.state=="nonpending") {
+			seat.style.fill="green";
+			this.reservedSeats = this.reservedSeats.filter(e => e!=seat);
+		} else if(myMsg.state=="reserved") {
+			seat.style.fill="red";
+			if(!this.reservedSeats.includes(seat)) this.reservedSeats.push(seat);
+		}
 	}
 
 }
@@ -715,6 +715,14 @@ document.getElementById('paymentForm').addEventListener('submit',function(event)
 				}
 			});
 		}
+		let holdToken = document.getElementById("userPicker")?.holdToken;
+		if(holdToken) {
+			form.appendChild(Object.assign(document.createElement("input"), {
+				type: "hidden",
+				name: "holdToken",
+				value: holdToken
+			}));
+		}
 		console.log(registration);
 		document.body.appendChild(form);
 		if(!window.location.href.includes(5173)) form.submit();
@@ -214,6 +214,14 @@ document.getElementById('paymentForm').addEventListener('submit',function(event)
 			i++;
 		});
 
+		let holdToken = document.getElementById("userPicker")?.holdToken;
+		if(holdToken) {
+			form.appendChild(Object.assign(document.createElement("input"), {
+				type: "hidden",
+				name: "holdToken",
+				value: holdToken
+			}));
+		}
 		console.log(registration);
 
 		let trackingGuid = uuidv4();
@@ -232,7 +240,10 @@ document.getElementById('paymentForm').addEventListener('submit',function(event)
 					response.json().then(r2 => {
 						console.log("Response code from submit: "+r2.confirmationCode);
 						if(r2.confirmationCode=="-1") {
+							let taken = r2.takenSeats ? "seats "+r2.takenSeats.join(", ")+
+								" were just taken;<br>" : "";
 							document.getElementById("bookedMessage").innerHTML="Failed to book seats;<br>" +
+								taken +
 								"click <a href=\"javascript:location.reload()\">here</a> to try again";
 							document.getElementById("confirmDiv").style.display="block";
 						} else {